@@ -0,0 +1,56 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.SpellCheckComponent;
+
+import com.ifactory.press.db.solr.spelling.suggest.MultiSuggester;
+
+/**
+ * An embedded Solr running the collection1 core of a copy of the repository's test Solr home
+ * (../solr, or the solr.home system property), so benchmarks never touch the test indexes. The
+ * copy is deleted on close.
+ */
+class EmbeddedCore implements Closeable {
+
+  final CoreContainer container;
+  final SolrCore core;
+  final EmbeddedSolrServer solr;
+  private final Path home;
+
+  EmbeddedCore() throws IOException {
+    Path source = Paths.get(System.getProperty("solr.home", "../solr"));
+    home = Files.createTempDirectory("ifpress-benchmark");
+    FileUtils.copyDirectory(source.toFile(), home.toFile());
+    for (String dataDir : new String[] { "collection1/data", "collection1/suggestIndex", "heron/data" }) {
+      File dir = home.resolve(dataDir).toFile();
+      FileUtils.deleteDirectory(dir);
+      dir.mkdirs();
+    }
+    container = CoreContainer.createAndLoad(home);
+    core = container.getCore("collection1");
+    solr = new EmbeddedSolrServer(container, "collection1");
+  }
+
+  MultiSuggester getSuggester(String name) {
+    SpellCheckComponent component = (SpellCheckComponent) core.getSearchComponent("suggest-component");
+    return (MultiSuggester) component.getSpellCheckers().get(name);
+  }
+
+  @Override
+  public void close() throws IOException {
+    core.close();
+    container.shutdown();
+    FileUtils.deleteDirectory(home.toFile());
+  }
+
+}
@@ -0,0 +1,146 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ifactory.press.db.solr.analysis.PunctuationStrippingTokenFilter;
+import com.ifactory.press.db.solr.analysis.PunctuationStrippingTokenFilterFactory;
+
+/**
+ * Compares PunctuationStrippingTokenFilter's lookup table with the regular expression it replaced,
+ * in tokens per second. The tokens are words of a synthetic vocabulary, with punctuation tokens
+ * mixed in at {@link #punctuationRate}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PunctuationStrippingBenchmark {
+
+  private static final int TOKEN_COUNT = 10000;
+
+  /** table: the filter's lookup table; regex: the regular expression it replaced */
+  @Param({ "table", "regex" })
+  public String matcher;
+
+  @Param({ "0.1", "0.3" })
+  public double punctuationRate;
+
+  private PunctuationStrippingTokenFilterFactory factory;
+  private String[] tokens;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    factory = new PunctuationStrippingTokenFilterFactory(new HashMap<String, String>());
+    SyntheticCorpus corpus = new SyntheticCorpus(50000, 1.0, 42);
+    Random random = new Random(42);
+    String punctuation = PunctuationStrippingTokenFilter.DEFAULT_PUNCTUATION;
+    tokens = new String[TOKEN_COUNT];
+    for (int i = 0; i < TOKEN_COUNT; i++) {
+      if (random.nextDouble() < punctuationRate) {
+        int length = 1 + random.nextInt(3);
+        StringBuilder token = new StringBuilder(length);
+        for (int j = 0; j < length; j++) {
+          token.append(punctuation.charAt(random.nextInt(punctuation.length())));
+        }
+        tokens[i] = token.toString();
+      } else {
+        tokens[i] = corpus.word();
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TOKEN_COUNT)
+  public int filter() throws IOException {
+    TokenStream source = new ArrayTokenStream(tokens);
+    TokenStream filter = "regex".equals(matcher) ? new RegexPunctuationStrippingFilter(source) : factory.create(source);
+    filter.reset();
+    int count = 0;
+    while (filter.incrementToken()) {
+      ++count;
+    }
+    filter.end();
+    filter.close();
+    return count;
+  }
+
+  static final class ArrayTokenStream extends TokenStream {
+
+    private final String[] tokens;
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+    private int i;
+
+    ArrayTokenStream(String[] tokens) {
+      this.tokens = tokens;
+    }
+
+    @Override
+    public boolean incrementToken() {
+      if (i >= tokens.length) {
+        return false;
+      }
+      clearAttributes();
+      posIncrAtt.setPositionIncrement(1);
+      termAtt.append(tokens[i++]);
+      return true;
+    }
+
+  }
+
+  /** PunctuationStrippingTokenFilter as it was, matching each token with a regular expression */
+  static final class RegexPunctuationStrippingFilter extends TokenFilter {
+
+    private final Pattern punctuationPattern;
+    private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private boolean first = true;
+
+    RegexPunctuationStrippingFilter(TokenStream input) {
+      super(input);
+      punctuationPattern = Pattern.compile("[\\[\\]\"':;,\\.<>;/\\?\\\\\\|{}+=\\-_\\(\\)\\*&^%$#@!~`]+");
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      while (input.incrementToken()) {
+        if (!punctuationPattern.matcher(termAtt).matches()) {
+          if (first) {
+            if (posIncrAtt.getPositionIncrement() == 0) {
+              posIncrAtt.setPositionIncrement(1);
+            }
+            first = false;
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+  }
+
+}
@@ -0,0 +1,76 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ifactory.press.db.solr.spelling.suggest.MultiSuggester;
+
+/**
+ * Measures a full MultiSuggester build (suggest-infix-all: terms of fulltext_t plus stored title
+ * values) over a synthetic index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class SuggesterBuildBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int documents;
+
+  @Param({ "200" })
+  public int wordsPerDocument;
+
+  @Param({ "50000" })
+  public int vocabularySize;
+
+  @Param({ "0.8", "1.2" })
+  public double skew;
+
+  private EmbeddedCore embedded;
+  private MultiSuggester suggester;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    embedded = new EmbeddedCore();
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, skew, 42);
+    for (int i = 0; i < documents; i++) {
+      embedded.solr.add(corpus.document(i, wordsPerDocument));
+    }
+    embedded.solr.commit(true, true);
+    suggester = embedded.getSuggester("suggest-infix-all");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    embedded.close();
+  }
+
+  @Benchmark
+  public void build() throws Exception {
+    RefCounted<SolrIndexSearcher> searcher = embedded.core.getSearcher();
+    try {
+      suggester.build(embedded.core, searcher.get());
+    } finally {
+      searcher.decref();
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup.LookupResult;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ifactory.press.db.solr.spelling.suggest.SafariInfixSuggester;
+import com.ifactory.press.db.solr.spelling.suggest.SafariInfixSuggester.Context;
+
+/**
+ * Measures SafariInfixSuggester lookup latency for prefixes of different lengths, with and without
+ * context filters. The suggester holds the words of a synthetic vocabulary, weighted by frequency,
+ * each tagged with the SHOW context and one of {@link #CATEGORIES} category contexts, chosen at random
+ * (a word's rank determines its first syllable, so categories by rank would follow the prefixes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SuggesterLookupBenchmark {
+
+  private static final int CATEGORIES = 8;
+
+  private static final int KEY_COUNT = 1024;
+
+  private static final BytesRef SHOW = new BytesRef(new byte[] { (byte) Context.SHOW.ordinal() });
+
+  @Param({ "100000" })
+  public int vocabularySize;
+
+  @Param({ "1.0" })
+  public double skew;
+
+  @Param({ "1", "2", "4", "6" })
+  public int prefixLength;
+
+  /** none: no context filter; show: the SHOW context; category: both SHOW and one category are required */
+  @Param({ "none", "show", "category" })
+  public String contexts;
+
+  private SafariInfixSuggester suggester;
+  private String[] keys;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, skew, 42);
+    suggester = new SafariInfixSuggester(new ByteBuffersDirectory(), new StandardAnalyzer(), new StandardAnalyzer(), 4, false,
+        Collections.<String> emptyList());
+    suggester.build(new VocabularyIterator(corpus));
+    // look up prefixes of words drawn from the same distribution
+    keys = new String[KEY_COUNT];
+    for (int i = 0; i < KEY_COUNT; i++) {
+      String word = corpus.word();
+      keys[i] = word.substring(0, Math.min(prefixLength, word.length()));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    suggester.close();
+  }
+
+  @Benchmark
+  public List<LookupResult> lookup() throws IOException {
+    String key = keys[next++ % KEY_COUNT];
+    switch (contexts) {
+    case "show":
+      return suggester.lookup(key, (Set<BytesRef>) null, false, 10);
+    case "category":
+      // a set of contexts is ORed, and every entry has SHOW, so each context must be required
+      Map<BytesRef, Occur> filter = new HashMap<BytesRef, Occur>();
+      filter.put(SHOW, Occur.MUST);
+      filter.put(category(next % CATEGORIES), Occur.MUST);
+      return suggester.lookup(key, filter, 10, true, false);
+    default:
+      return suggester.lookup(key, 10, true, false);
+    }
+  }
+
+  private static BytesRef category(int i) {
+    return new BytesRef("category" + i);
+  }
+
+  static class VocabularyIterator implements InputIterator {
+
+    private final SyntheticCorpus corpus;
+    private final String[] vocabulary;
+    private final Random random = new Random(42);
+    private int rank = -1;
+
+    VocabularyIterator(SyntheticCorpus corpus) {
+      this.corpus = corpus;
+      vocabulary = corpus.getVocabulary();
+    }
+
+    @Override
+    public BytesRef next() {
+      if (++rank >= vocabulary.length) {
+        return null;
+      }
+      return new BytesRef(vocabulary[rank]);
+    }
+
+    @Override
+    public long weight() {
+      return (long) (corpus.getProbability(rank) * 10000000);
+    }
+
+    @Override
+    public BytesRef payload() {
+      return null;
+    }
+
+    @Override
+    public boolean hasPayloads() {
+      return false;
+    }
+
+    @Override
+    public Set<BytesRef> contexts() {
+      Set<BytesRef> contexts = new HashSet<BytesRef>();
+      contexts.add(SHOW);
+      contexts.add(category(random.nextInt(CATEGORIES)));
+      return contexts;
+    }
+
+    @Override
+    public boolean hasContexts() {
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,83 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ifactory.press.db.solr.spelling.suggest.MultiSuggester;
+
+/**
+ * Measures incremental suggester updates: MultiSuggester.add() for a batch of documents followed by
+ * a commit() of the batch's suggestions, reported per document. Documents are not indexed, so
+ * only the suggester's work is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SuggesterUpdateBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  @Param({ "200", "2000" })
+  public int wordsPerDocument;
+
+  @Param({ "50000" })
+  public int vocabularySize;
+
+  @Param({ "0.8", "1.2" })
+  public double skew;
+
+  private EmbeddedCore embedded;
+  private MultiSuggester suggester;
+  private SolrInputDocument[] batch;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    embedded = new EmbeddedCore();
+    suggester = embedded.getSuggester("suggest-infix-all");
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, skew, 42);
+    batch = new SolrInputDocument[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch[i] = corpus.document(i, wordsPerDocument);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    embedded.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void addAndCommit() throws Exception {
+    for (SolrInputDocument doc : batch) {
+      suggester.add(doc);
+    }
+    RefCounted<SolrIndexSearcher> searcher = embedded.core.getSearcher();
+    try {
+      suggester.commit(searcher.get());
+    } finally {
+      searcher.decref();
+    }
+  }
+
+}
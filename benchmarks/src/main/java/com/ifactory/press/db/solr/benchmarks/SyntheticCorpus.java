@@ -0,0 +1,98 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Generates documents from a synthetic vocabulary whose word frequencies follow a Zipf
+ * distribution. The words are made of syllables, so they share prefixes the way real words do.
+ * A corpus with the same parameters always generates the same documents.
+ */
+public class SyntheticCorpus {
+
+  private static final String[] SYLLABLES = { "ba", "ke", "mi", "no", "ru", "sa", "te", "vo", "zu", "li", "da", "fe", "go", "pi", "ha", "jo" };
+
+  private final String[] vocabulary;
+  private final double[] cumulative;
+  private final Random random;
+
+  /**
+   * @param vocabularySize the number of distinct words
+   * @param skew the Zipf exponent: 0 makes every word equally likely; around 1 is typical of natural text
+   * @param seed seeds the random choice of words
+   */
+  public SyntheticCorpus(int vocabularySize, double skew, long seed) {
+    vocabulary = new String[vocabularySize];
+    cumulative = new double[vocabularySize];
+    double total = 0;
+    for (int rank = 0; rank < vocabularySize; rank++) {
+      vocabulary[rank] = makeWord(rank);
+      total += 1 / Math.pow(rank + 1, skew);
+      cumulative[rank] = total;
+    }
+    for (int rank = 0; rank < vocabularySize; rank++) {
+      cumulative[rank] /= total;
+    }
+    random = new Random(seed);
+  }
+
+  private static String makeWord(int rank) {
+    StringBuilder word = new StringBuilder();
+    int n = rank + 1;
+    while (n > 0) {
+      word.append(SYLLABLES[n % SYLLABLES.length]);
+      n /= SYLLABLES.length;
+    }
+    return word.toString();
+  }
+
+  /**
+   * @return a word chosen at random, according to the distribution
+   */
+  public String word() {
+    int i = Arrays.binarySearch(cumulative, random.nextDouble());
+    return vocabulary[i < 0 ? Math.min(-i - 1, vocabulary.length - 1) : i];
+  }
+
+  /**
+   * @return a space-separated sequence of randomly chosen words
+   */
+  public String text(int words) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      if (i > 0) {
+        text.append(' ');
+      }
+      text.append(word());
+    }
+    return text.toString();
+  }
+
+  /**
+   * @return a document with a uri, a short title (title_t) and a body (fulltext_t) of the given length
+   */
+  public SolrInputDocument document(int id, int words) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/" + id);
+    doc.addField("title_t", text(4));
+    doc.addField("fulltext_t", text(words));
+    return doc;
+  }
+
+  /**
+   * @return the distinct words, most frequent first
+   */
+  public String[] getVocabulary() {
+    return vocabulary;
+  }
+
+  /**
+   * @return the probability that {@link #word()} returns the word of the given rank
+   */
+  public double getProbability(int rank) {
+    return rank == 0 ? cumulative[0] : cumulative[rank] - cumulative[rank - 1];
+  }
+
+}
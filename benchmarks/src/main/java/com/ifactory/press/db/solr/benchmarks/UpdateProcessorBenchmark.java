@@ -0,0 +1,239 @@
+package com.ifactory.press.db.solr.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TextField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ifactory.press.db.solr.processor.FieldMergingProcessorFactory;
+import com.ifactory.press.db.solr.processor.MultiSuggesterProcessorFactory;
+import com.ifactory.press.db.solr.processor.UpdateDocValuesProcessor;
+import com.ifactory.press.db.solr.processor.UpdateDocValuesProcessorFactory;
+
+/**
+ * Measures the update processors in documents per second, using the processors configured in
+ * the collection1 update chains. Allocation rates are reported by the GC profiler, which
+ * BenchmarkMain enables by default.
+ *
+ * Each processor is measured on its own, without indexing, except for updateDocValuesKey, which
+ * writes docvalues directly, and fullChain, which runs field-merging-update-chain
+ * (FieldMergingProcessor, MultiSuggesterProcessor and indexing). FieldMergingProcessor analyzes its
+ * destination field lazily, as the document is indexed, so the fieldMerging cases are followed by
+ * an {@link AnalyzingProcessor}, which consumes the tokens that indexing would; the other processors
+ * have nothing after them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class UpdateProcessorBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  private static final String WEIGHT_FIELD = "weight_dv";
+
+  /**
+   * fieldMerging: title_mt and text_mt merged into catchall;
+   * fieldMergingParallel: the same, analyzed concurrently;
+   * fieldMergingShared: title_mt, text_mt and text_mt_stored, sharing analysis;
+   * updateDocValuesPreserve: existing weight_dv values copied into the documents;
+   * updateDocValuesKey: weight_dv updated in place, keyed by uri;
+   * multiSuggester: suggestions extracted by MultiSuggesterProcessor;
+   * fullChain: field-merging-update-chain
+   */
+  @Param({ "fieldMerging", "fieldMergingParallel", "fieldMergingShared", "updateDocValuesPreserve", "updateDocValuesKey", "multiSuggester", "fullChain" })
+  public String processor;
+
+  @Param({ "200", "2000" })
+  public int wordsPerDocument;
+
+  @Param({ "50000" })
+  public int vocabularySize;
+
+  @Param({ "1.0" })
+  public double skew;
+
+  private EmbeddedCore embedded;
+  private SolrInputDocument[] documents;
+  private SolrInputDocument[] batch;
+  private SolrQueryRequest req;
+  private UpdateRequestProcessor updateProcessor;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    embedded = new EmbeddedCore();
+    SyntheticCorpus corpus = new SyntheticCorpus(vocabularySize, skew, 42);
+    documents = new SolrInputDocument[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      SolrInputDocument doc = corpus.document(i, wordsPerDocument);
+      doc.addField("title_mt", doc.getFieldValue("title_t"));
+      doc.addField("text_mt", doc.getFieldValue("fulltext_t"));
+      doc.addField("text_mt_stored", corpus.text(wordsPerDocument / 10));
+      doc.addField(WEIGHT_FIELD, i);
+      documents[i] = doc;
+      // index the documents, so there are docvalues to preserve and update
+      embedded.solr.add(doc.deepCopy());
+    }
+    embedded.solr.commit(true, true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    embedded.close();
+  }
+
+  @Setup(Level.Iteration)
+  public void createProcessor() throws IOException {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    switch (processor) {
+    case "fieldMerging":
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = getFactory("field-merging-update-chain", FieldMergingProcessorFactory.class).getInstance(req, rsp, new AnalyzingProcessor(embedded.core.getLatestSchema()));
+      break;
+    case "fieldMergingParallel":
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = getFactory("field-merging-parallel-chain", FieldMergingProcessorFactory.class).getInstance(req, rsp, new AnalyzingProcessor(embedded.core.getLatestSchema()));
+      break;
+    case "fieldMergingShared":
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = getFactory("field-merging-shared-chain", FieldMergingProcessorFactory.class).getInstance(req, rsp, new AnalyzingProcessor(embedded.core.getLatestSchema()));
+      break;
+    case "updateDocValuesPreserve":
+      params.set(UpdateDocValuesProcessor.UPDATEDV_VALUE_FIELD, WEIGHT_FIELD);
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = getFactory("docvalues-update-chain", UpdateDocValuesProcessorFactory.class).getInstance(req, rsp, null);
+      break;
+    case "updateDocValuesKey":
+      params.set(UpdateDocValuesProcessor.UPDATEDV_KEY_FIELD, "uri");
+      params.set(UpdateDocValuesProcessor.UPDATEDV_VALUE_FIELD, WEIGHT_FIELD);
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = getFactory("docvalues-update-chain", UpdateDocValuesProcessorFactory.class).getInstance(req, rsp, null);
+      break;
+    case "multiSuggester":
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = getFactory("field-merging-update-chain", MultiSuggesterProcessorFactory.class).getInstance(req, rsp, null);
+      break;
+    case "fullChain":
+      req = new LocalSolrQueryRequest(embedded.core, params);
+      updateProcessor = embedded.core.getUpdateProcessingChain("field-merging-update-chain").createProcessor(req, rsp);
+      break;
+    default:
+      throw new IllegalArgumentException("unknown processor: " + processor);
+    }
+    // shared analysis passes tokens through the request
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+  }
+
+  @TearDown(Level.Iteration)
+  public void commit() throws IOException {
+    // commit, so pending suggestions and index updates don't accumulate across iterations
+    updateProcessor.processCommit(new CommitUpdateCommand(req, false));
+    updateProcessor.finish();
+    SolrRequestInfo.clearRequestInfo();
+    req.close();
+    if (!"fullChain".equals(processor)) {
+      // processors without a following RunUpdateProcessor don't commit the index
+      try {
+        embedded.solr.commit(true, true);
+      } catch (SolrServerException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void copyDocuments() {
+    // processors modify the documents they process
+    batch = new SolrInputDocument[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch[i] = documents[i].deepCopy();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void processAdd() throws IOException {
+    for (SolrInputDocument doc : batch) {
+      AddUpdateCommand cmd = new AddUpdateCommand(req);
+      cmd.solrDoc = doc;
+      updateProcessor.processAdd(cmd);
+    }
+  }
+
+  /**
+   * Stands in for indexing at the end of the chain: consumes the tokens of the document's indexed
+   * text fields, including those merged by FieldMergingProcessor.
+   */
+  static class AnalyzingProcessor extends UpdateRequestProcessor {
+
+    private final IndexSchema schema;
+
+    AnalyzingProcessor(IndexSchema schema) {
+      super(null);
+      this.schema = schema;
+    }
+
+    @Override
+    public void processAdd(AddUpdateCommand cmd) throws IOException {
+      for (SolrInputField field : cmd.getSolrInputDocument()) {
+        SchemaField schemaField = schema.getFieldOrNull(field.getName());
+        if (schemaField == null || !schemaField.indexed() || !(schemaField.getType() instanceof TextField)) {
+          continue;
+        }
+        for (Object value : field) {
+          IndexableField indexableField = value instanceof IndexableField ? (IndexableField) value : schemaField.createField(value);
+          try (TokenStream tokens = indexableField.tokenStream(schema.getIndexAnalyzer(), null)) {
+            tokens.reset();
+            while (tokens.incrementToken()) {
+            }
+            tokens.end();
+          }
+        }
+      }
+    }
+
+  }
+
+  private UpdateRequestProcessorFactory getFactory(String chain, Class<? extends UpdateRequestProcessorFactory> factoryClass) {
+    for (UpdateRequestProcessorFactory factory : embedded.core.getUpdateProcessingChain(chain).getProcessors()) {
+      if (factoryClass.isInstance(factory)) {
+        return factory;
+      }
+    }
+    throw new IllegalStateException(chain + " has no " + factoryClass.getSimpleName());
+  }
+
+}
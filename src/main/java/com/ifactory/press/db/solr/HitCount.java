@@ -18,8 +18,11 @@ package com.ifactory.press.db.solr;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.lucene.index.IndexReader;
@@ -27,12 +30,15 @@ import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queries.function.valuesource.DoubleConstValueSource;
-import org.apache.lucene.queries.function.valuesource.SumFloatFunction;
-import org.apache.lucene.queries.function.valuesource.TermFreqValueSource;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreMode;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.search.ValueSourceParser;
 
@@ -41,9 +47,38 @@ import org.apache.solr.search.ValueSourceParser;
  * of termfreq(term) for all terms in the query.  The arguments specify
  * fields whose terms are to be counted.  If no arguments are passed, terms
  * from every field are counted.
+ *
+ * The terms extracted from each query are cached, keyed by the query string
+ * (and the parameters that affect its parsing), so repeated queries are not
+ * re-parsed.  The number of cached queries may be set with the cacheSize
+ * init parameter; the default is 256.
  */
 public class HitCount extends ValueSourceParser {
-    
+
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    // cached for queries whose terms can't be extracted
+    private static final Term[] UNSUPPORTED = new Term[0];
+
+    private Map<String, Term[]> termCache = createCache(DEFAULT_CACHE_SIZE);
+
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        Object cacheSize = args == null ? null : args.get("cacheSize");
+        if (cacheSize != null) {
+            termCache = createCache(Integer.parseInt(cacheSize.toString()));
+        }
+    }
+
+    private static Map<String, Term[]> createCache(final int size) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, Term[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Term[]> eldest) {
+                return size() > size;
+            }
+        });
+    }
+
     @Override
     public ValueSource parse(FunctionQParser fp) throws SyntaxError {
         // hitcount() takes no arguments.  If we wanted to pass a query
@@ -52,7 +87,43 @@ public class HitCount extends ValueSourceParser {
         while (fp.hasMoreArguments()) {
             fields.add(fp.parseArg());
         }
-        Query q = fp.subQuery(fp.getParams().get("q"), "lucene").getQuery();
+        return getValueSource(fp, fields);
+    }
+
+    /**
+     * @param parser a parser of the request whose query (q) terms are to be counted
+     * @param fields the fields whose terms are counted; all fields are counted if empty
+     * @return the total frequency of the query terms in the given fields
+     */
+    public ValueSource getValueSource(QParser parser, Set<String> fields) throws SyntaxError {
+        SolrParams params = parser.getParams();
+        String qstr = params.get("q");
+        Term[] terms;
+        if (qstr != null && !qstr.startsWith("{!")) {
+            // local params may refer to any other request parameter, so those queries aren't cached
+            String key = qstr + '\u0000' + params.get(CommonParams.DF) + '\u0000' + params.get(QueryParsing.OP);
+            terms = termCache.get(key);
+            if (terms == null) {
+                terms = extractTerms(parser, qstr);
+                termCache.put(key, terms);
+            }
+        } else {
+            terms = extractTerms(parser, qstr);
+        }
+        if (terms == UNSUPPORTED) {
+            return new DoubleConstValueSource (1);
+        }
+        List<Term> counted = new ArrayList<Term>(terms.length);
+        for (Term t : terms) {
+            if (fields.isEmpty() || fields.contains (t.field())) {
+                counted.add (t);
+            }
+        }
+        return new HitCountValueSource(counted.toArray(new Term[counted.size()]));
+    }
+
+    private static Term[] extractTerms(QParser parser, String qstr) throws SyntaxError {
+        Query q = parser.subQuery(qstr, "lucene").getQuery();
         Set<Term> terms = new HashSet<Term>();
         try {
             /*
@@ -64,17 +135,11 @@ public class HitCount extends ValueSourceParser {
             IndexReader emptyReader = new MultiReader();
             new IndexSearcher(emptyReader).createWeight(q, ScoreMode.COMPLETE, 1f).extractTerms(terms);
         } catch (UnsupportedOperationException e) {
-            return new DoubleConstValueSource (1);
+            return UNSUPPORTED;
         } catch (IOException e) {
-            return new DoubleConstValueSource (1);
-        }
-        List<ValueSource> termcounts = new ArrayList<ValueSource>(terms.size());
-        for (Term t : terms) {
-            if (fields.isEmpty() || fields.contains (t.field())) {
-                termcounts.add (new TermFreqValueSource(t.field(), t.text(), t.field(), t.bytes()));
-            }
+            return UNSUPPORTED;
         }
-        return new SumFloatFunction(termcounts.toArray(new ValueSource[termcounts.size()]));
+        return terms.toArray(new Term[terms.size()]);
     }
     
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Safari Books Online
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.transform.DocTransformer;
+import org.apache.solr.response.transform.TransformerFactory;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+
+/**
+ * Adds the hit count of the query (see {@link HitCount}) to each returned
+ * document, as in fl=*,[hitcount].  Unlike the hitcount() function, which is
+ * evaluated wherever it is referenced, the counts are only computed for the
+ * documents in the returned page, all at once, segment by segment in docID
+ * order.
+ *
+ * Parameters: f, a comma-separated list of the fields whose terms are counted
+ * (all fields if omitted), and matches=true to count query matches, as
+ * {@link MatchCount} does, rather than term occurrences.  The cacheSize init
+ * parameter sets the size of the query term cache, as for {@link HitCount}.
+ */
+public class HitCountTransformerFactory extends TransformerFactory {
+
+    private final HitCount hitCount = new HitCount();
+
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        super.init(args);
+        hitCount.init(args);
+    }
+
+    @Override
+    public DocTransformer create(String field, SolrParams params, SolrQueryRequest req) {
+        Set<String> fields = new HashSet<String>();
+        String f = params.get("f");
+        if (f != null) {
+            for (String name : f.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    fields.add(name.trim());
+                }
+            }
+        }
+        String qstr = req.getParams().get("q");
+        ValueSource valueSource;
+        try {
+            QParser parser = QParser.getParser(qstr, req);
+            if (params.getBool("matches", false)) {
+                valueSource = new MatchCountValueSource(parser.subQuery(qstr, "lucene").getQuery(), fields);
+            } else {
+                valueSource = hitCount.getValueSource(parser, fields);
+            }
+        } catch (SyntaxError e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+        }
+        return new HitCountTransformer(field, valueSource);
+    }
+
+    static class HitCountTransformer extends DocTransformer {
+
+        private final String name;
+        private final ValueSource valueSource;
+        // the page's docIDs, in order, and their counts
+        private int[] docs;
+        private float[] counts;
+
+        HitCountTransformer(String name, ValueSource valueSource) {
+            this.name = name;
+            this.valueSource = valueSource;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean needsSolrIndexSearcher() {
+            return true;
+        }
+
+        @Override
+        public void setContext(ResultContext context) {
+            super.setContext(context);
+            DocList docList = context.getDocList();
+            docs = new int[docList == null ? 0 : docList.size()];
+            if (docs.length == 0) {
+                counts = new float[0];
+                return;
+            }
+            DocIterator iterator = docList.iterator();
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = iterator.nextDoc();
+            }
+            Arrays.sort(docs);
+            try {
+                counts = computeCounts(context.getSearcher(), docs);
+            } catch (IOException e) {
+                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+            }
+        }
+
+        private float[] computeCounts(SolrIndexSearcher searcher, int[] sortedDocs) throws IOException {
+            Map<Object, Object> fcontext = ValueSource.newContext(searcher);
+            valueSource.createWeight(fcontext, searcher);
+            List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+            float[] values = new float[sortedDocs.length];
+            LeafReaderContext leaf = null;
+            FunctionValues leafValues = null;
+            for (int i = 0; i < sortedDocs.length; i++) {
+                int doc = sortedDocs[i];
+                if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                    leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                    leafValues = valueSource.getValues(fcontext, leaf);
+                }
+                values[i] = leafValues.floatVal(doc - leaf.docBase);
+            }
+            return values;
+        }
+
+        @Override
+        public void transform(SolrDocument doc, int docid) throws IOException {
+            int i = Arrays.binarySearch(docs, docid);
+            if (i >= 0) {
+                doc.setField(name, counts[i]);
+            } else {
+                // not one of the page's documents; count it by itself
+                doc.setField(name, computeCounts(context.getSearcher(), new int[] { docid })[0]);
+            }
+        }
+
+    }
+
+}
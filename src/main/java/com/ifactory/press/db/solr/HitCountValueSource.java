@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Safari Books Online
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * The total frequency of a set of terms in each document.  The postings of
+ * all the terms are opened together, once per segment, and are only advanced
+ * when a document at or beyond the nearest of them is requested, so documents
+ * containing none of the terms cost a single comparison.
+ */
+public class HitCountValueSource extends ValueSource {
+
+    private final Term[] terms;
+
+    public HitCountValueSource(Term[] terms) {
+        this.terms = terms.clone();
+        // group the terms by field, in term order, to seek each field's terms in one pass
+        Arrays.sort(this.terms);
+    }
+
+    @Override
+    public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, LeafReaderContext readerContext) throws IOException {
+        return new HitCountValues(readerContext.reader());
+    }
+
+    private PostingsEnum[] getPostings(LeafReader reader) throws IOException {
+        List<PostingsEnum> postings = new ArrayList<PostingsEnum>(terms.length);
+        String field = null;
+        TermsEnum termsEnum = null;
+        for (Term term : terms) {
+            if (!term.field().equals(field)) {
+                field = term.field();
+                Terms fieldTerms = reader.terms(field);
+                termsEnum = fieldTerms == null ? null : fieldTerms.iterator();
+            }
+            if (termsEnum != null && termsEnum.seekExact(term.bytes())) {
+                postings.add(termsEnum.postings(null, PostingsEnum.FREQS));
+            }
+        }
+        return postings.toArray(new PostingsEnum[postings.size()]);
+    }
+
+    @Override
+    public String description() {
+        StringBuilder buf = new StringBuilder("hitcount(");
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(terms[i]);
+        }
+        return buf.append(')').toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HitCountValueSource && Arrays.equals(terms, ((HitCountValueSource) o).terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(terms);
+    }
+
+    class HitCountValues extends FloatDocValues {
+
+        private final LeafReader reader;
+        private PostingsEnum[] postings;
+        // the smallest docID of any postings, once they have been advanced
+        private int nextDoc;
+        private int lastDoc;
+
+        HitCountValues(LeafReader reader) throws IOException {
+            super(HitCountValueSource.this);
+            this.reader = reader;
+            reset();
+        }
+
+        private void reset() throws IOException {
+            postings = getPostings(reader);
+            nextDoc = postings.length == 0 ? DocIdSetIterator.NO_MORE_DOCS : -1;
+            lastDoc = -1;
+        }
+
+        @Override
+        public float floatVal(int doc) throws IOException {
+            if (doc < lastDoc) {
+                // postings only go forwards
+                reset();
+            }
+            lastDoc = doc;
+            if (doc < nextDoc) {
+                return 0;
+            }
+            int count = 0;
+            int next = DocIdSetIterator.NO_MORE_DOCS;
+            for (PostingsEnum termPostings : postings) {
+                int termDoc = termPostings.docID();
+                if (termDoc < doc) {
+                    termDoc = termPostings.advance(doc);
+                }
+                if (termDoc == doc) {
+                    count += termPostings.freq();
+                }
+                next = Math.min(next, termDoc);
+            }
+            nextDoc = next;
+            return count;
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 Safari Books Online
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.solr.search.FunctionQParser;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.ValueSourceParser;
+
+/**
+ * Defines the Solr function matchcount([field, ...]), a variant of
+ * {@link HitCount} which counts the matches of the query in each document
+ * rather than the occurrences of its terms: a phrase query counts each
+ * occurrence of the phrase, not of its words, and span, proximity and
+ * wildcard queries are counted too.  The arguments specify fields whose
+ * matches are to be counted.  If no arguments are passed, matches in every
+ * field are counted.
+ *
+ * Matches are computed per document, so this is intended for the fields
+ * returned with a page of results (fl), not for sorting.
+ */
+public class MatchCount extends ValueSourceParser {
+
+    @Override
+    public ValueSource parse(FunctionQParser fp) throws SyntaxError {
+        Set<String> fields = new HashSet<String>();
+        while (fp.hasMoreArguments()) {
+            fields.add(fp.parseArg());
+        }
+        return new MatchCountValueSource(fp.subQuery(fp.getParams().get("q"), "lucene").getQuery(), fields);
+    }
+
+}
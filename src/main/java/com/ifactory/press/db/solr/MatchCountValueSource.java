@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Safari Books Online
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Matches;
+import org.apache.lucene.search.MatchesIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Weight;
+
+/**
+ * The number of times a query matches each document, counted as the match
+ * intervals reported by {@link Weight#matches(LeafReaderContext, int)}.  A
+ * phrase counts once per occurrence of the whole phrase, and multi-term
+ * queries (wildcards, prefixes, fuzzy queries) count their expanded terms.
+ * Documents that match without reporting any positions (for example match-all
+ * or function queries) count 1, and documents that don't match count 0.
+ *
+ * Matches are computed one document at a time, so this is affordable for the
+ * documents returned in a page of results, but not for sorting large result
+ * sets; for that, use {@link HitCountValueSource}.
+ */
+public class MatchCountValueSource extends ValueSource {
+
+    private final Query query;
+    private final Set<String> fields;
+
+    /**
+     * @param query the query whose matches are counted
+     * @param fields the fields whose matches are counted; all fields are counted if empty
+     */
+    public MatchCountValueSource(Query query, Set<String> fields) {
+        this.query = query;
+        this.fields = fields;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void createWeight(@SuppressWarnings("rawtypes") Map context, IndexSearcher searcher) throws IOException {
+        context.put(this, searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE_NO_SCORES, 1f));
+    }
+
+    @Override
+    public FunctionValues getValues(@SuppressWarnings("rawtypes") Map context, final LeafReaderContext readerContext) throws IOException {
+        Weight w = (Weight) context.get(this);
+        if (w == null) {
+            createWeight(context, (IndexSearcher) context.get("searcher"));
+            w = (Weight) context.get(this);
+        }
+        final Weight weight = w;
+        return new FloatDocValues(this) {
+            @Override
+            public float floatVal(int doc) throws IOException {
+                return countMatches(weight.matches(readerContext, doc));
+            }
+        };
+    }
+
+    private int countMatches(Matches matches) throws IOException {
+        if (matches == null) {
+            return 0;
+        }
+        int count = 0;
+        boolean positional = false;
+        for (String field : matches) {
+            positional = true;
+            if (!fields.isEmpty() && !fields.contains(field)) {
+                continue;
+            }
+            MatchesIterator intervals = matches.getMatches(field);
+            if (intervals != null) {
+                while (intervals.next()) {
+                    ++count;
+                }
+            }
+        }
+        return positional ? count : 1;
+    }
+
+    @Override
+    public String description() {
+        return "matchcount(" + query + (fields.isEmpty() ? "" : "," + fields) + ')';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MatchCountValueSource)) {
+            return false;
+        }
+        MatchCountValueSource other = (MatchCountValueSource) o;
+        return query.equals(other.query) && fields.equals(other.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * query.hashCode() + fields.hashCode();
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.ifactory.press.db.solr.analysis;
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.FilteringTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import com.ifactory.press.db.solr.spelling.suggest.MultiDictionary;
+
+/**
+ * Strips leading and trailing characters that are not letters or digits from each token, in place,
+ * as {@link MultiDictionary#stripAfflatus(String)} does for suggestions.  Tokens with no letters or
+ * digits are removed; their position increments are added to the next token.  Offsets are left
+ * unchanged.
+ */
+public final class AfflatusStrippingTokenFilter extends FilteringTokenFilter {
+
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+  public AfflatusStrippingTokenFilter(TokenStream input) {
+    super(input);
+  }
+
+  @Override
+  protected boolean accept() throws IOException {
+    char[] buffer = termAtt.buffer();
+    int length = termAtt.length();
+    int start = MultiDictionary.afflatusStart(buffer, 0, length);
+    int end = MultiDictionary.afflatusEnd(buffer, start, length);
+    if (start == end) {
+      return false;
+    }
+    if (start > 0) {
+      System.arraycopy(buffer, start, buffer, 0, end - start);
+    }
+    termAtt.setLength(end - start);
+    return true;
+  }
+
+}
@@ -0,0 +1,22 @@
+package com.ifactory.press.db.solr.analysis;
+
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+public class AfflatusStrippingTokenFilterFactory extends TokenFilterFactory {
+
+  public AfflatusStrippingTokenFilterFactory(Map<String, String> args) {
+    super(args);
+    if (!args.isEmpty()) {
+      throw new IllegalArgumentException("Unknown parameters: " + args);
+    }
+  }
+
+  @Override
+  public TokenStream create(TokenStream input) {
+    return new AfflatusStrippingTokenFilter(input);
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Safari Books Online
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * A TokenStream that replays tokens captured from another TokenStream. The
+ * source stream is consumed completely (and closed) when this stream is
+ * constructed, so analysis may be performed on one thread and the tokens
+ * replayed on another. Unlike CachingTokenFilter, this stream does not share
+ * attributes with its source, so the source analysis chain may be reused as
+ * soon as construction completes. The stream may be replayed any number of
+ * times by calling reset().
+ */
+public final class CachedTokenStream extends TokenStream {
+
+    private final ArrayList<State> tokens;
+    private final State finalState;
+    private int position;
+
+    /**
+     * Consumes and closes the source stream, capturing all of its tokens.
+     *
+     * @param source the stream to consume
+     * @throws IOException if the source stream throws
+     */
+    public CachedTokenStream(TokenStream source) throws IOException {
+        super(source.cloneAttributes());
+        tokens = new ArrayList<State>(64);
+        try {
+            source.reset();
+            while (source.incrementToken()) {
+                tokens.add(source.captureState());
+            }
+            source.end();
+            finalState = source.captureState();
+        } finally {
+            source.close();
+        }
+    }
+
+    private CachedTokenStream(CachedTokenStream other) {
+        super(other.cloneAttributes());
+        tokens = other.tokens;
+        finalState = other.finalState;
+    }
+
+    /**
+     * @return a new stream that replays the same tokens as this one, without copying them. The
+     * two streams have separate attributes, so they may be consumed independently.
+     */
+    public CachedTokenStream copy() {
+        return new CachedTokenStream(this);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (position >= tokens.size()) {
+            return false;
+        }
+        restoreState(tokens.get(position++));
+        return true;
+    }
+
+    @Override
+    public void end() throws IOException {
+        restoreState(finalState);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        position = 0;
+    }
+
+    /**
+     * @return the number of tokens captured from the source stream
+     */
+    public int size() {
+        return tokens.size();
+    }
+
+}
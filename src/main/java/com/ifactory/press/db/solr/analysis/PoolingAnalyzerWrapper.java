@@ -17,8 +17,11 @@
 package com.ifactory.press.db.solr.analysis;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.AnalyzerWrapper;
@@ -28,23 +31,40 @@ import org.apache.lucene.analysis.AnalyzerWrapper;
  * analyzer to be re-used for several instances of the same source field. It
  * defines a PooledReuseStrategy that enables multiple analysis chains for the
  * same field to be created, and then released and re-used. Callers should call
- * releaseComponents() when it is known that all analysis chains
- * (TokenStreamComponents) reserved using #setReusableComponents() have been
- * closed and may be reused.
+ * release() when it is known that all analysis chains (TokenStreamComponents)
+ * reserved by the calling thread have been closed and may be reused, or
+ * discard() if they may not have been closed.
+ *
+ * The pool is thread-safe and is intended to be long-lived, shared by all
+ * update requests.  Components are reserved per thread, and released into a
+ * per-field lock-free stack of idle components.  At most maxIdle components are
+ * kept for each field, and components that have been idle for longer than
+ * maxIdleMillis are evicted.
  */
 public final class PoolingAnalyzerWrapper extends AnalyzerWrapper {
 
+    public static final int DEFAULT_MAX_IDLE = 32;
+    public static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
     private final Analyzer wrapped;
 
     /**
-     * Constructs with wrapped analyzer
+     * Constructs with wrapped analyzer, and default pool limits
      * 
      * @param analyzer
      */
     public PoolingAnalyzerWrapper(Analyzer analyzer) {
-        super(POOLED_REUSE_STRATEGY);
+        this(analyzer, DEFAULT_MAX_IDLE, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    /**
+     * @param analyzer the wrapped analyzer
+     * @param maxIdle the maximum number of idle components to retain per field
+     * @param maxIdleMillis idle components older than this are evicted
+     */
+    public PoolingAnalyzerWrapper(Analyzer analyzer, int maxIdle, long maxIdleMillis) {
+        super(new PooledReuseStrategy(new TokenStreamComponentsPool(maxIdle, maxIdleMillis)));
         this.wrapped = analyzer;
-        POOLED_REUSE_STRATEGY.createPool(this);
     }
 
     @Override
@@ -57,25 +77,39 @@ public final class PoolingAnalyzerWrapper extends AnalyzerWrapper {
         return "PoolingAnalyzerWrapper(" + wrapped + ")";
     }
 
+    /**
+     * releases the components reserved by the calling thread into the pool
+     */
     public void release() {
-        ((PooledReuseStrategy) getReuseStrategy()).releaseComponents(this);
+        getPool().release();
+    }
+
+    /**
+     * drops the components reserved by the calling thread without re-using them
+     */
+    public void discard() {
+        getPool().discard();
+    }
+
+    /**
+     * @return the number of idle components available for re-use for the given field
+     */
+    public int getIdleCount(String fieldName) {
+        return getPool().getIdleCount(fieldName);
     }
 
-    public static final PooledReuseStrategy POOLED_REUSE_STRATEGY = new PooledReuseStrategy();
+    private TokenStreamComponentsPool getPool() {
+        return ((PooledReuseStrategy) getReuseStrategy()).pool;
+    }
 
     protected static class PooledReuseStrategy extends Analyzer.ReuseStrategy {
 
-        public PooledReuseStrategy() {
-        }
+        private final TokenStreamComponentsPool pool;
 
-        public void createPool (Analyzer analyzer) {
-            setStoredValue(analyzer, new TokenStreamComponentsPool());
+        public PooledReuseStrategy(TokenStreamComponentsPool pool) {
+            this.pool = pool;
         }
 
-        private TokenStreamComponentsPool getPool(Analyzer analyzer) {
-            return (TokenStreamComponentsPool) getStoredValue(analyzer);
-        }
-        
         /**
          * Retrieves the components from a per-field pool containing components
          * that are free for re-use. If the pool is empty, returns null, causing
@@ -83,7 +117,7 @@ public final class PoolingAnalyzerWrapper extends AnalyzerWrapper {
          */
         @Override
         public TokenStreamComponents getReusableComponents(Analyzer analyzer, String fieldName) {
-            return getPool(analyzer).get(fieldName);
+            return pool.get(fieldName);
         }
 
         /**
@@ -91,58 +125,139 @@ public final class PoolingAnalyzerWrapper extends AnalyzerWrapper {
          */
         @Override
         public void setReusableComponents(Analyzer analyzer, String fieldName, TokenStreamComponents components) {
-            getPool(analyzer).put(fieldName, components);
-        }
-
-        /**
-         * releases all of the reserved TokenStreamComponents into the pool,
-         * making them available for re-use
-         */
-        public void releaseComponents(Analyzer analyzer) {
-            getPool(analyzer).release();
+            pool.reserve(fieldName, components);
         }
 
     }
 
     protected static class TokenStreamComponentsPool {
-        private final Map<String, ArrayList<TokenStreamComponents>> available;
-        private final Map<String, ArrayList<TokenStreamComponents>> reserved;
 
-        protected TokenStreamComponentsPool() {
-            available = new HashMap<String, ArrayList<TokenStreamComponents>>();
-            reserved = new HashMap<String, ArrayList<TokenStreamComponents>>();
+        private final int maxIdle;
+        private final long maxIdleNanos;
+        private final ConcurrentMap<String, FieldPool> available;
+        private final ThreadLocal<ArrayList<PooledComponents>> reserved;
+
+        protected TokenStreamComponentsPool(int maxIdle, long maxIdleMillis) {
+            this.maxIdle = maxIdle;
+            this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+            available = new ConcurrentHashMap<String, FieldPool>();
+            reserved = new ThreadLocal<ArrayList<PooledComponents>>() {
+                @Override
+                protected ArrayList<PooledComponents> initialValue() {
+                    return new ArrayList<PooledComponents>();
+                }
+            };
         }
 
         protected TokenStreamComponents get(String fieldName) {
-            ArrayList<Analyzer.TokenStreamComponents> fieldAnalysisComponents = available.get(fieldName);
-            if (fieldAnalysisComponents == null) {
-                available.put(fieldName, new ArrayList<Analyzer.TokenStreamComponents>());
+            FieldPool fieldPool = available.get(fieldName);
+            if (fieldPool == null) {
                 return null;
-            } else if (fieldAnalysisComponents.isEmpty()) {
+            }
+            PooledComponents pooled = fieldPool.pop();
+            if (pooled == null) {
                 return null;
-            } else {
-                return fieldAnalysisComponents.remove(fieldAnalysisComponents.size() - 1);
             }
+            reserved.get().add(pooled);
+            return pooled.components;
         }
 
-        protected void put(String fieldName, TokenStreamComponents components) {
-            ArrayList<Analyzer.TokenStreamComponents> fieldAnalysisComponents = reserved.get(fieldName);
-            if (fieldAnalysisComponents == null) {
-                fieldAnalysisComponents = new ArrayList<Analyzer.TokenStreamComponents>();
-                reserved.put(fieldName, fieldAnalysisComponents);
-            }
-            fieldAnalysisComponents.add(components);
+        protected void reserve(String fieldName, TokenStreamComponents components) {
+            reserved.get().add(new PooledComponents(getFieldPool(fieldName), components));
         }
 
         protected void release() {
-            for (Map.Entry<String, ArrayList<TokenStreamComponents>> entry : reserved.entrySet()) {
-                ArrayList<Analyzer.TokenStreamComponents> fieldAnalysisComponents = available.get(entry.getKey());
-                assert (fieldAnalysisComponents != null);
-                fieldAnalysisComponents.addAll(entry.getValue());
-                entry.getValue().clear();
+            ArrayList<PooledComponents> fieldAnalysisComponents = reserved.get();
+            long now = System.nanoTime();
+            for (PooledComponents pooled : fieldAnalysisComponents) {
+                pooled.fieldPool.push(pooled, now);
+            }
+            fieldAnalysisComponents.clear();
+            for (FieldPool fieldPool : available.values()) {
+                fieldPool.evict(now - maxIdleNanos);
+            }
+        }
+
+        protected void discard() {
+            reserved.get().clear();
+        }
+
+        protected int getIdleCount(String fieldName) {
+            FieldPool fieldPool = available.get(fieldName);
+            return fieldPool == null ? 0 : fieldPool.idleCount.get();
+        }
+
+        private FieldPool getFieldPool(String fieldName) {
+            FieldPool fieldPool = available.get(fieldName);
+            if (fieldPool == null) {
+                FieldPool created = new FieldPool(maxIdle);
+                fieldPool = available.putIfAbsent(fieldName, created);
+                if (fieldPool == null) {
+                    fieldPool = created;
+                }
+            }
+            return fieldPool;
+        }
+
+    }
+
+    /**
+     * A bounded lock-free stack of idle components for a single field. The most
+     * recently released components are re-used first, so the least recently
+     * used ones collect at the tail, where they are evicted.
+     */
+    private static class FieldPool {
+
+        private final int maxIdle;
+        private final ConcurrentLinkedDeque<PooledComponents> idle;
+        private final AtomicInteger idleCount;
+
+        FieldPool(int maxIdle) {
+            this.maxIdle = maxIdle;
+            idle = new ConcurrentLinkedDeque<PooledComponents>();
+            idleCount = new AtomicInteger();
+        }
+
+        PooledComponents pop() {
+            PooledComponents pooled = idle.pollFirst();
+            if (pooled != null) {
+                idleCount.decrementAndGet();
+            }
+            return pooled;
+        }
+
+        void push(PooledComponents pooled, long now) {
+            if (idleCount.incrementAndGet() > maxIdle) {
+                // the pool is full; let these components be garbage collected
+                idleCount.decrementAndGet();
+                return;
+            }
+            pooled.releasedAt = now;
+            idle.offerFirst(pooled);
+        }
+
+        void evict(long releasedBefore) {
+            PooledComponents oldest;
+            while ((oldest = idle.peekLast()) != null && oldest.releasedAt - releasedBefore < 0) {
+                if (idle.removeLastOccurrence(oldest)) {
+                    idleCount.decrementAndGet();
+                }
             }
         }
 
     }
 
+    private static class PooledComponents {
+
+        final FieldPool fieldPool;
+        final TokenStreamComponents components;
+        volatile long releasedAt;
+
+        PooledComponents(FieldPool fieldPool, TokenStreamComponents components) {
+            this.fieldPool = fieldPool;
+            this.components = components;
+        }
+
+    }
+
 }
@@ -1,7 +1,6 @@
 package com.ifactory.press.db.solr.analysis;
 
 import java.io.IOException;
-import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
@@ -11,17 +10,68 @@ import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 /**
  * Strips tokens that consist entirely of ASCII punctuation characters.  Discards position information
  * for those tokens, acting as if they had never existed.
+ *
+ * The punctuation characters are held in a 128-bit table, one bit per ASCII character, so tokens are
+ * checked by scanning the term buffer, without allocating anything.
+ *
+ * In unicode mode, non-ASCII characters in the Unicode punctuation and symbol categories (including
+ * CJK and full-width punctuation, and supplementary characters) are stripped as well.
  */
 public final class PunctuationStrippingTokenFilter extends TokenFilter {
-  
-  private final Pattern punctuationPattern;
+
+  /** The characters stripped by default */
+  public static final String DEFAULT_PUNCTUATION = "[]\"':;,.<>/?\\|{}+=-_()*&^%$#@!~`";
+
+  private static final long[] DEFAULT_TABLE = asciiTable(DEFAULT_PUNCTUATION);
+
+  // bits for characters 0-63 and 64-127
+  private final long punctuationLow;
+  private final long punctuationHigh;
+  private final boolean unicode;
   private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
   private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
   private boolean first = true;
   
   protected PunctuationStrippingTokenFilter(TokenStream input) {
+    this(input, DEFAULT_TABLE);
+  }
+
+  /**
+   * @param input the tokens to filter
+   * @param punctuation the table of characters to strip, as created by {@link #asciiTable(String)}
+   */
+  protected PunctuationStrippingTokenFilter(TokenStream input, long[] punctuation) {
+    this(input, punctuation, false);
+  }
+
+  /**
+   * @param input the tokens to filter
+   * @param punctuation the table of ASCII characters to strip, as created by {@link #asciiTable(String)}
+   * @param unicode whether to strip non-ASCII Unicode punctuation and symbols as well
+   */
+  protected PunctuationStrippingTokenFilter(TokenStream input, long[] punctuation, boolean unicode) {
     super(input);
-    punctuationPattern = Pattern.compile("[\\[\\]\"':;,\\.<>;/\\?\\\\\\|{}+=\\-_\\(\\)\\*&^%$#@!~`]+");
+    punctuationLow = punctuation[0];
+    punctuationHigh = punctuation[1];
+    this.unicode = unicode;
+  }
+
+  /**
+   * @param chars the characters to include
+   * @return a table of the characters, for {@link #PunctuationStrippingTokenFilter(TokenStream, long[])}
+   * @throws IllegalArgumentException if any of the characters is not ASCII
+   */
+  public static long[] asciiTable(String chars) {
+    long[] table = new long[2];
+    for (int i = 0; i < chars.length(); i++) {
+      char c = chars.charAt(i);
+      if (c >= 128) {
+        throw new IllegalArgumentException("punctuation must be ASCII: " + chars);
+      }
+      // shifts are taken mod 64
+      table[c >> 6] |= 1L << c;
+    }
+    return table;
   }
 
   @Override
@@ -42,7 +92,30 @@ public final class PunctuationStrippingTokenFilter extends TokenFilter {
   }
 
   protected boolean accept () {
-    return ! punctuationPattern.matcher(termAtt).matches();
+    char[] buffer = termAtt.buffer();
+    int length = termAtt.length();
+    if (length == 0) {
+      return true;
+    }
+    for (int i = 0; i < length;) {
+      char c = buffer[i];
+      if (c < 128) {
+        if (((c < 64 ? punctuationLow : punctuationHigh) & (1L << c)) == 0) {
+          return true;
+        }
+        ++i;
+      } else if (unicode) {
+        // unpaired surrogates are returned as themselves, and are not punctuation
+        int codePoint = Character.codePointAt(buffer, i, length);
+        if (!UnicodePunctuation.contains(codePoint)) {
+          return true;
+        }
+        i += Character.charCount(codePoint);
+      } else {
+        return true;
+      }
+    }
+    return false;
   }
   
 }
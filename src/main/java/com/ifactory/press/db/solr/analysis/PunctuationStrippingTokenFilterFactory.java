@@ -5,10 +5,20 @@ import java.util.Map;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.util.TokenFilterFactory;
 
+/**
+ * Creates {@link PunctuationStrippingTokenFilter}s.  The optional punctuation argument lists the
+ * (ASCII) characters that are stripped; it defaults to {@link PunctuationStrippingTokenFilter#DEFAULT_PUNCTUATION}.
+ * If unicode="true", tokens made up of non-ASCII Unicode punctuation and symbols are stripped too.
+ */
 public class PunctuationStrippingTokenFilterFactory extends TokenFilterFactory {
 
+  private final long[] punctuation;
+  private final boolean unicode;
+
   public PunctuationStrippingTokenFilterFactory(Map<String, String> args) {
     super(args);
+    punctuation = PunctuationStrippingTokenFilter.asciiTable(get(args, "punctuation", PunctuationStrippingTokenFilter.DEFAULT_PUNCTUATION));
+    unicode = getBoolean(args, "unicode", false);
     if (!args.isEmpty()) {
       throw new IllegalArgumentException("Unknown parameters: " + args);
     }
@@ -16,7 +26,7 @@ public class PunctuationStrippingTokenFilterFactory extends TokenFilterFactory {
 
   @Override
   public TokenStream create(TokenStream input) {
-    return new PunctuationStrippingTokenFilter(input);
+    return new PunctuationStrippingTokenFilter(input, punctuation, unicode);
   }
 
 }
@@ -0,0 +1,74 @@
+package com.ifactory.press.db.solr.analysis;
+
+import java.util.Arrays;
+
+/**
+ * The Unicode punctuation (Pc, Pd, Ps, Pe, Pi, Pf, Po) and symbol (Sm, Sc, Sk, So) characters, as
+ * classified by {@link Character#getType(int)}, precomputed when the class is loaded: the Basic
+ * Multilingual Plane as a 64K-bit table, and the supplementary planes, where these characters are
+ * sparse, as a sorted list of ranges.
+ */
+final class UnicodePunctuation {
+
+  private static final long[] BMP = new long[1 << 10];
+
+  // alternating start (inclusive) and end (exclusive) code points of supplementary ranges
+  private static final int[] SUPPLEMENTARY;
+
+  static {
+    for (int c = 0; c < Character.MIN_SUPPLEMENTARY_CODE_POINT; c++) {
+      if (isPunctuationType(c)) {
+        BMP[c >> 6] |= 1L << c;
+      }
+    }
+    int[] ranges = new int[64];
+    int n = 0;
+    boolean inRange = false;
+    for (int c = Character.MIN_SUPPLEMENTARY_CODE_POINT; c <= Character.MAX_CODE_POINT + 1; c++) {
+      if (inRange != (c <= Character.MAX_CODE_POINT && isPunctuationType(c))) {
+        if (n == ranges.length) {
+          ranges = Arrays.copyOf(ranges, n * 2);
+        }
+        ranges[n++] = c;
+        inRange = !inRange;
+      }
+    }
+    SUPPLEMENTARY = Arrays.copyOf(ranges, n);
+  }
+
+  private UnicodePunctuation() {
+  }
+
+  /**
+   * @param codePoint a Unicode code point
+   * @return whether the code point is a punctuation or symbol character
+   */
+  static boolean contains(int codePoint) {
+    if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+      return (BMP[codePoint >> 6] & (1L << codePoint)) != 0;
+    }
+    // an insertion point after an odd number of boundaries is inside a range
+    int i = Arrays.binarySearch(SUPPLEMENTARY, codePoint);
+    return i >= 0 ? (i & 1) == 0 : (-i - 1 & 1) == 1;
+  }
+
+  static boolean isPunctuationType(int codePoint) {
+    switch (Character.getType(codePoint)) {
+    case Character.CONNECTOR_PUNCTUATION:
+    case Character.DASH_PUNCTUATION:
+    case Character.START_PUNCTUATION:
+    case Character.END_PUNCTUATION:
+    case Character.INITIAL_QUOTE_PUNCTUATION:
+    case Character.FINAL_QUOTE_PUNCTUATION:
+    case Character.OTHER_PUNCTUATION:
+    case Character.MATH_SYMBOL:
+    case Character.CURRENCY_SYMBOL:
+    case Character.MODIFIER_SYMBOL:
+    case Character.OTHER_SYMBOL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+}
@@ -1,15 +1,20 @@
 package com.ifactory.press.db.solr.highlight;
 
-import java.util.Arrays;
-import java.util.Comparator;
-
 import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
 import org.apache.lucene.search.uhighlight.Passage;
 
+/**
+ * Formats passages in order of their score, rather than their offset.  An instance reuses its
+ * buffer, and so can't format passages on more than one thread at a time.
+ */
 public class HighlightFormatter extends DefaultPassageFormatter {
 
   private boolean shouldPreserveField;
-  
+
+  private int maxPassages = Integer.MAX_VALUE;
+
+  private final StringBuilder buf = new StringBuilder();
+
   public HighlightFormatter () {
     super("<b>", "</b>", "... ", false);
   }
@@ -18,31 +23,84 @@ public class HighlightFormatter extends DefaultPassageFormatter {
     super (preTag, postTag, ellipsis, htmlEncoder);
     this.shouldPreserveField = shouldPreserveField;
   }
-  
+
+  /**
+   * @param maxPassages the number of passages to format, at most: the best scoring
+   */
+  public HighlightFormatter(String preTag, String postTag, String ellipsis, boolean htmlEncoder, boolean shouldPreserveField, int maxPassages) {
+    this (preTag, postTag, ellipsis, htmlEncoder, shouldPreserveField);
+    this.maxPassages = maxPassages;
+  }
+
   /**
    * Sort the passages by *score* not by offset.
    */
   @Override
   public String format(Passage passages[], String content) {
-    Arrays.sort(passages, new Comparator<Passage>() {
-      @Override
-      public int compare(Passage p1, Passage p2) {
-        return (int) (1000.0 * (p2.getScore() - p1.getScore()));
-      }
-    });
+    int count = Math.min(maxPassages, passages.length);
+    selectTopPassages(passages, count);
 
     // If this is a preservedField, reset offsets to make sure non-highlighted field data is not cut off
     if(shouldPreserveField) {
-      for(Passage passage : passages) {
-        passage.setStartOffset(0);
-        passage.setEndOffset(content.length()); // Offsets use len, not len-1, for the max end limit
+      for (int i = 0; i < count; i++) {
+        passages[i].setStartOffset(0);
+        passages[i].setEndOffset(content.length()); // Offsets use len, not len-1, for the max end limit
+      }
+    }
+
+    buf.setLength(0);
+    int pos = 0;
+    for (int p = 0; p < count; p++) {
+      Passage passage = passages[p];
+      // don't add ellipsis if its the first one, or if its connected.
+      if (passage.getStartOffset() > pos && pos > 0) {
+        buf.append(ellipsis);
+      }
+      pos = passage.getStartOffset();
+      int[] matchStarts = passage.getMatchStarts();
+      int[] matchEnds = passage.getMatchEnds();
+      for (int i = 0; i < passage.getNumMatches(); i++) {
+        int start = matchStarts[i];
+        append(buf, content, pos, start);
+        int end = matchEnds[i];
+        // merge overlapping matches
+        while (i + 1 < passage.getNumMatches() && matchStarts[i + 1] < end) {
+          end = matchEnds[++i];
+        }
+        end = Math.min(end, passage.getEndOffset()); // in case match straddles past passage
+        buf.append(preTag);
+        append(buf, content, start, end);
+        buf.append(postTag);
+        pos = end;
       }
+      // a match may span the passage's end
+      append(buf, content, pos, Math.max(pos, passage.getEndOffset()));
+      pos = passage.getEndOffset();
     }
+    return buf.toString();
+  }
 
-    return super.format(passages, content);
+  /**
+   * Moves the k highest scoring passages, in descending order of score, to the front of the array.
+   * Passages with equal scores keep their order.
+   */
+  static void selectTopPassages(Passage[] passages, int k) {
+    for (int i = 0; i < k; i++) {
+      int best = i;
+      for (int j = i + 1; j < passages.length; j++) {
+        if (Float.compare(passages[j].getScore(), passages[best].getScore()) > 0) {
+          best = j;
+        }
+      }
+      if (best != i) {
+        Passage top = passages[best];
+        System.arraycopy(passages, i, passages, i + 1, best - i);
+        passages[i] = top;
+      }
+    }
   }
 
-  /** 
+  /**
    * Appends original text to the response.
    * @param dest resulting text, with &lt; and &amp; encoded using entities, if escape==true
    * @param content original text content
@@ -52,22 +110,18 @@ public class HighlightFormatter extends DefaultPassageFormatter {
   @Override
   protected void append(StringBuilder dest, String content, int start, int end) {
     if (escape) {
+      // append the runs of text between the characters that are encoded
+      int run = start;
       for (int i = start; i < end; i++) {
         char ch = content.charAt(i);
-        switch(ch) {
-          case '&':
-            dest.append("&amp;");
-            break;
-          case '<':
-            dest.append("&lt;");
-            break;
-          default:
-            dest.append(ch);
+        if (ch == '&' || ch == '<') {
+          dest.append(content, run, i).append(ch == '&' ? "&amp;" : "&lt;");
+          run = i + 1;
         }
       }
+      dest.append(content, run, end);
     } else {
       dest.append(content, start, end);
     }
   }
 }
-
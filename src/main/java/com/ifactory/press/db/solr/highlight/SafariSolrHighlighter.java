@@ -1,18 +1,273 @@
 package com.ifactory.press.db.solr.highlight;
 
+import org.apache.lucene.search.Query;
 import org.apache.lucene.search.uhighlight.PassageFormatter;
 import org.apache.lucene.search.uhighlight.PassageScorer;
 import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.HighlightParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrNamedThreadFactory;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.highlight.UnifiedSolrHighlighter;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RTimerTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * The unified highlighter, with Safari's passage formatting, that can highlight the fields of a page
+ * concurrently.  Set the threads init arg to the size of a thread pool, shared by all requests, to
+ * enable this; the fields of each request are then split into {@link #THREADS} groups, which are
+ * highlighted in parallel, and their snippets assembled in field order.  {@link #TIME_ALLOWED} bounds
+ * the time a request waits for its groups: the fields of groups that haven't finished by then are left
+ * out, and the response header is marked with partialResults=true.  So are the fields of groups the
+ * pool has no room for, rather than being highlighted on the request's thread, and a group that is
+ * still running when its request stops waiting gives up before its next batch of {@link #BATCH_SIZE}
+ * documents.
+ */
 public class SafariSolrHighlighter extends UnifiedSolrHighlighter {
 
+  private static final Logger log = LoggerFactory.getLogger(SafariSolrHighlighter.class);
+
   public static final String PRESERVED_FIELDS = "hl.preservedFields";
 
+  /** the maximum number of groups of fields to highlight concurrently; defaults to the pool size */
+  public static final String THREADS = "hl.threads";
+
+  /** milliseconds to wait for concurrently highlighted fields; by default, there is no limit */
+  public static final String TIME_ALLOWED = "hl.timeAllowed";
+
+  /**
+   * the number of documents a group highlights at a time, checking in between whether its request is
+   * still waiting for it; smaller batches stop sooner, but repeat the highlighter's setup more often
+   */
+  public static final String BATCH_SIZE = "hl.batchSize";
+
+  private static final int DEFAULT_QUEUE_SIZE = 64;
+
+  private static final int DEFAULT_BATCH_SIZE = 10;
+
+  private int threads;
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+  private ExecutorService executor;
+
+  @Override
+  public void init(PluginInfo info) {
+    super.init(info);
+    if (info == null || info.initArgs == null) {
+      return;
+    }
+    Object o = info.initArgs.get("threads");
+    if (o instanceof Integer) {
+      threads = (Integer) o;
+    } else if (o != null) {
+      log.error("threads must be an int, got " + o);
+    }
+    o = info.initArgs.get("queueSize");
+    if (o instanceof Integer && (Integer) o > 0) {
+      queueSize = (Integer) o;
+    } else if (o != null) {
+      log.error("queueSize must be a positive int, got " + o);
+    }
+  }
+
+  @Override
+  public NamedList<Object> doHighlighting(DocList docs, Query query, SolrQueryRequest req, String[] defaultFields) throws IOException {
+    final SolrParams params = req.getParams();
+    if (!isHighlightingEnabled(params)) {
+      return null;
+    }
+    String[] fieldNames = getHighlightFields(query, req, defaultFields);
+    int groupCount = Math.min(params.getInt(THREADS, threads), Math.min(threads, fieldNames.length));
+    if (groupCount < 2) {
+      return super.doHighlighting(docs, query, req, defaultFields);
+    }
+    int[] docIDs = toDocIDs(docs);
+    String[] keys = getUniqueKeys(req.getSearcher(), docIDs);
+    long timeAllowed = params.getLong(TIME_ALLOWED, -1L);
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeAllowed);
+    final boolean timed = timeAllowed >= 0;
+    final int batchSize = Math.max(1, params.getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE));
+    // set once the request stops waiting for its groups
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    List<Future<Map<String, String[]>>> futures = new ArrayList<>(groupCount);
+    ExecutorService executor = getExecutor(req.getCore());
+    for (int group = 0; group < groupCount; group++) {
+      // deal the fields out in turn, so that fields listed together are highlighted in parallel
+      int size = (fieldNames.length - group + groupCount - 1) / groupCount;
+      final String[] groupFields = new String[size];
+      final int[] maxPassages = new int[size];
+      for (int i = 0; i < size; i++) {
+        groupFields[i] = fieldNames[group + i * groupCount];
+        maxPassages[i] = params.getFieldInt(groupFields[i], HighlightParams.SNIPPETS, 1);
+      }
+      final UnifiedHighlighter highlighter = getHighlighter(withOwnTimer(req));
+      try {
+        futures.add(executor.submit(new Callable<Map<String, String[]>>() {
+          @Override
+          public Map<String, String[]> call() throws IOException {
+            if (docIDs.length <= batchSize) {
+              return isCancelled() ? null : highlighter.highlightFields(groupFields, query, docIDs, maxPassages);
+            }
+            // highlight a batch of documents at a time, so as to stop once the request has given up on the group
+            Map<String, String[]> groupSnippets = new HashMap<>();
+            for (String field : groupFields) {
+              groupSnippets.put(field, new String[docIDs.length]);
+            }
+            for (int start = 0; start < docIDs.length; start += batchSize) {
+              if (isCancelled()) {
+                return null;
+              }
+              int[] batch = Arrays.copyOfRange(docIDs, start, Math.min(start + batchSize, docIDs.length));
+              Map<String, String[]> batchSnippets = highlighter.highlightFields(groupFields, query, batch, maxPassages);
+              for (Map.Entry<String, String[]> field : batchSnippets.entrySet()) {
+                System.arraycopy(field.getValue(), 0, groupSnippets.get(field.getKey()), start, batch.length);
+              }
+            }
+            return groupSnippets;
+          }
+
+          private boolean isCancelled() {
+            return cancelled.get() || (timed && System.nanoTime() - deadline >= 0);
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        // the pool is saturated, or shut down: leave the group out rather than add to the request's time
+        log.warn("no room to highlight " + Arrays.toString(groupFields) + " concurrently");
+      }
+    }
+    Map<String, String[]> snippets = new HashMap<>();
+    try {
+      for (Future<Map<String, String[]>> future : futures) {
+        Map<String, String[]> groupSnippets;
+        try {
+          if (timed) {
+            groupSnippets = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+          } else {
+            groupSnippets = future.get();
+          }
+        } catch (TimeoutException e) {
+          // don't interrupt: an interrupt closes the index's NIO channels
+          future.cancel(false);
+          continue;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e.getCause());
+        }
+        if (groupSnippets != null) {
+          snippets.putAll(groupSnippets);
+        }
+      }
+    } finally {
+      // the groups still running have nothing more to contribute
+      cancelled.set(true);
+    }
+    if (snippets.size() < fieldNames.length) {
+      log.warn("highlighting incomplete with " + TIME_ALLOWED + "=" + timeAllowed + "; highlighted "
+          + snippets.keySet() + " of " + Arrays.toString(fieldNames));
+      fieldNames = highlightedFields(fieldNames, snippets);
+      SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+      if (requestInfo != null && requestInfo.getRsp() != null) {
+        requestInfo.getRsp().getResponseHeader().add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
+      }
+    }
+    return encodeSnippets(keys, fieldNames, snippets);
+  }
+
+  /**
+   * Solr's highlighter times the loading of field values with a timer shared through the request,
+   * which can't be run by more than one thread, so each group's highlighter has a timer of its own.
+   * The groups do share the request's context, and so its {@link RequestSettings}.
+   */
+  private static SolrQueryRequest withOwnTimer(final SolrQueryRequest req) {
+    return new SolrQueryRequestBase(req.getCore(), req.getParams(), new RTimerTree()) {
+      @Override
+      public Map<Object, Object> getContext() {
+        return req.getContext();
+      }
+
+      @Override
+      public SolrIndexSearcher getSearcher() {
+        return req.getSearcher();
+      }
+
+      @Override
+      public IndexSchema getSchema() {
+        return req.getSchema();
+      }
+    };
+  }
+
+  private static String[] highlightedFields(String[] fieldNames, Map<String, String[]> snippets) {
+    List<String> fields = new ArrayList<>(snippets.size());
+    for (String field : fieldNames) {
+      if (snippets.containsKey(field)) {
+        fields.add(field);
+      }
+    }
+    return fields.toArray(new String[0]);
+  }
+
+  synchronized ExecutorService getExecutor(SolrCore core) {
+    if (executor == null) {
+      // when the queue is full (or the pool has been shut down), submitting a group is rejected, and
+      // its fields are left out
+      executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(queueSize),
+          new SolrNamedThreadFactory("safariHighlighter"),
+          new ThreadPoolExecutor.AbortPolicy());
+      final ExecutorService closing = executor;
+      core.addCloseHook(new CloseHook() {
+        @Override
+        public void preClose(SolrCore core) {
+          ExecutorUtil.shutdownAndAwaitTermination(closing);
+        }
+
+        @Override
+        public void postClose(SolrCore core) {
+        }
+      });
+    }
+    return executor;
+  }
+
   /** Creates an instance of the Lucene PostingsHighlighter. Provided for subclass extension so that
    * a subclass can return a subclass of {@link UnifiedSolrHighlighter.SolrExtendedUnifiedHighlighter}. */
   @Override
@@ -22,31 +277,78 @@ public class SafariSolrHighlighter extends UnifiedSolrHighlighter {
 
   public class SafariUnifiedHighlighter extends SolrExtendedUnifiedHighlighter {
 
+    // shared by all of a request's highlighters
+    private final RequestSettings settings;
+
     public SafariUnifiedHighlighter(SolrQueryRequest req) {
       super(req);
+      RequestSettings requestSettings = (RequestSettings) req.getContext().get(RequestSettings.class);
+      if (requestSettings == null) {
+        requestSettings = new RequestSettings();
+        req.getContext().put(RequestSettings.class, requestSettings);
+      }
+      settings = requestSettings;
     }
-        
+
     @Override
     protected PassageFormatter getFormatter(String fieldName) {
+      PassageFormatter formatter = settings.formatters.get(fieldName);
+      if (formatter == null) {
+        formatter = createFormatter(fieldName);
+        settings.formatters.put(fieldName, formatter);
+      }
+      return formatter;
+    }
+
+    private PassageFormatter createFormatter(String fieldName) {
       // Try to get highlight configs, setting defaults if configs do not exist.
       String preTag = params.getFieldParam(fieldName, HighlightParams.TAG_PRE, "<em>");
       String postTag = params.getFieldParam(fieldName, HighlightParams.TAG_POST, "</em>");
       String ellipsis = params.getFieldParam(fieldName, HighlightParams.TAG_ELLIPSIS, "... ");
       String encoder = params.getFieldParam(fieldName, HighlightParams.ENCODER, "simple");
       // Load PRESERVED_FIELDS, allowing the config to specify all fields in one param
-      String[] fieldsToPreserve = params.getFieldParam(fieldName, PRESERVED_FIELDS, "").split("\\s+");
-      boolean shouldPreserveField = Arrays.asList(fieldsToPreserve).contains(fieldName);
-      return new HighlightFormatter(preTag, postTag, ellipsis, "html".equals(encoder), shouldPreserveField);
+      boolean shouldPreserveField = settings.getPreservedFields(params.getFieldParam(fieldName, PRESERVED_FIELDS, "")).contains(fieldName);
+      // the highlighter passes at most hl.snippets passages, but bound the formatter to them anyway
+      int maxPassages = params.getFieldInt(fieldName, HighlightParams.SNIPPETS, 1);
+      return new HighlightFormatter(preTag, postTag, ellipsis, "html".equals(encoder), shouldPreserveField, maxPassages);
     }
 
     @Override
     protected PassageScorer getScorer(String fieldName) {
-      float k1 = params.getFieldFloat(fieldName, HighlightParams.SCORE_K1, 1.2f);
-      float b = params.getFieldFloat(fieldName, HighlightParams.SCORE_B, 0.75f);
-      float pivot = params.getFieldFloat(fieldName, HighlightParams.SCORE_PIVOT, 87f);
-      return new PassageScorer(k1, b, pivot);
+      PassageScorer scorer = settings.scorers.get(fieldName);
+      if (scorer == null) {
+        float k1 = params.getFieldFloat(fieldName, HighlightParams.SCORE_K1, 1.2f);
+        float b = params.getFieldFloat(fieldName, HighlightParams.SCORE_B, 0.75f);
+        float pivot = params.getFieldFloat(fieldName, HighlightParams.SCORE_PIVOT, 87f);
+        scorer = new PassageScorer(k1, b, pivot);
+        settings.scorers.put(fieldName, scorer);
+      }
+      return scorer;
+    }
+
+  }
+
+  /**
+   * The formatter and scorer of each field, created from the request's parameters the first time the
+   * field is highlighted, and the parsed hl.preservedFields lists.  Concurrent, since the groups of
+   * fields that are highlighted in parallel share them.
+   */
+  static final class RequestSettings {
+
+    final Map<String, PassageFormatter> formatters = new ConcurrentHashMap<>();
+    final Map<String, PassageScorer> scorers = new ConcurrentHashMap<>();
+    // the fields are usually listed once, for all fields
+    private final Map<String, Set<String>> preservedFields = new ConcurrentHashMap<>();
+
+    Set<String> getPreservedFields(String fieldList) {
+      Set<String> fields = preservedFields.get(fieldList);
+      if (fields == null) {
+        fields = new HashSet<>(StrUtils.splitWS(fieldList, false));
+        preservedFields.put(fieldList, fields);
+      }
+      return fields;
     }
 
   }
 
-}
\ No newline at end of file
+}
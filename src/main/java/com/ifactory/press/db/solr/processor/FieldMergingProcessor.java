@@ -17,17 +17,30 @@
 package com.ifactory.press.db.solr.processor;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexableField;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 
+import com.ifactory.press.db.solr.analysis.CachedTokenStream;
 import com.ifactory.press.db.solr.analysis.PoolingAnalyzerWrapper;
 
 /**
@@ -64,6 +77,19 @@ import com.ifactory.press.db.solr.analysis.PoolingAnalyzerWrapper;
  *     &lt;/lst>
  *   &lt;/requestHandler>
  * </pre>
+ *
+ * Normally the source fields are analyzed lazily, by the IndexWriter, one field at a time.
+ * If the factory is configured with a positive <code>analysisThreads</code> (an &lt;int>),
+ * the source field values are instead analyzed concurrently on a bounded executor shared
+ * by all requests, and the IndexWriter only replays the cached tokens.  When the
+ * executor's queue (<code>analysisQueueSize</code>, default 64) is full, analysis runs
+ * on the calling thread.
+ *
+ * If <code>shareAnalysis</code> (a &lt;bool>) is true, then source fields that are indexed
+ * under their own name using the same analyzer as is used for merging are analyzed only
+ * once: the same tokens are indexed in both the source field and the destination field.
+ * This applies only to source fields whose type is a {@link SharedAnalysisTextField}, which
+ * picks up the tokens when the document is indexed, and not to copyField sources.
  */
 public class FieldMergingProcessor extends UpdateRequestProcessor {
     
@@ -71,42 +97,174 @@ public class FieldMergingProcessor extends UpdateRequestProcessor {
     
     private final String destinationField;
     private final HashMap<String,PoolingAnalyzerWrapper> sourceAnalyzers;
+    private final HashMap<String, Analyzer> fieldAnalyzers;
+    private final ExecutorService analysisExecutor;
+    private final HashMap<String, SchemaField> sharedFields;
+
+    // how long to wait for a source value's concurrent analysis before analyzing it on the update thread
+    private static final long ANALYSIS_TIMEOUT_SECONDS = 60;
     
     public FieldMergingProcessor(String destinationField, HashMap<String, Analyzer> sourceAnalyzers, UpdateRequestProcessor next) {
+        this(destinationField, sourceAnalyzers, createPooledAnalyzers(sourceAnalyzers), null, null, next);
+    }
+    
+    /**
+     * @param sourceAnalyzers the analyzers for each source field
+     * @param pooledAnalyzers pooling wrappers around the source analyzers; these may be shared by many processors
+     * @param sharedFields source fields whose own indexed tokens are shared with the destination field; may be null
+     * @param analysisExecutor if not null, source fields are pre-analyzed concurrently using this executor
+     */
+    public FieldMergingProcessor(String destinationField, HashMap<String, Analyzer> sourceAnalyzers,
+            HashMap<String, PoolingAnalyzerWrapper> pooledAnalyzers, HashMap<String, SchemaField> sharedFields,
+            ExecutorService analysisExecutor, UpdateRequestProcessor next) {
         super(next);
         this.destinationField = destinationField;
-        this.sourceAnalyzers = new HashMap<String, PoolingAnalyzerWrapper>();
+        this.fieldAnalyzers = sourceAnalyzers;
+        this.analysisExecutor = analysisExecutor;
+        this.sourceAnalyzers = pooledAnalyzers;
+        this.sharedFields = sharedFields;
+    }
+    
+    /**
+     * wraps each of the source analyzers with a PoolingAnalyzerWrapper
+     */
+    public static HashMap<String, PoolingAnalyzerWrapper> createPooledAnalyzers(HashMap<String, Analyzer> sourceAnalyzers) {
+        return createPooledAnalyzers(sourceAnalyzers, PoolingAnalyzerWrapper.DEFAULT_MAX_IDLE, PoolingAnalyzerWrapper.DEFAULT_MAX_IDLE_MILLIS);
+    }
+    
+    public static HashMap<String, PoolingAnalyzerWrapper> createPooledAnalyzers(HashMap<String, Analyzer> sourceAnalyzers, int maxIdle, long maxIdleMillis) {
+        HashMap<String, PoolingAnalyzerWrapper> pooledAnalyzers = new HashMap<String, PoolingAnalyzerWrapper>();
         for (Map.Entry<String, Analyzer> entry : sourceAnalyzers.entrySet()) {
             Analyzer fieldAnalyzer = entry.getValue();
-            this.sourceAnalyzers.put(entry.getKey(), new PoolingAnalyzerWrapper(fieldAnalyzer));
+            pooledAnalyzers.put(entry.getKey(), new PoolingAnalyzerWrapper(fieldAnalyzer, maxIdle, maxIdleMillis));
         }
+        return pooledAnalyzers;
     }
     
     @Override
     public void processAdd(AddUpdateCommand cmd) throws IOException {
         
-        if (sourceAnalyzers != null && destinationField != null) {
-            SolrInputDocument doc = cmd.getSolrInputDocument();
-            for (Map.Entry<String, PoolingAnalyzerWrapper> entry : sourceAnalyzers.entrySet()) {
-                String sourceFieldName = entry.getKey();
-                Analyzer fieldAnalyzer = entry.getValue();
-                Collection<Object> fieldValues = doc.getFieldValues(sourceFieldName);
-                if (fieldValues != null) {
-                    for (Object value : fieldValues) {
-                        IndexableField fieldValue = new TextField(destinationField, fieldAnalyzer.tokenStream(sourceFieldName, value.toString()));
-                        doc.addField(destinationField, fieldValue);
-                    }
+        if (analysisExecutor != null && fieldAnalyzers != null && destinationField != null) {
+            try {
+                preAnalyzeFields(cmd.getSolrInputDocument());
+                if (next != null) {
+                    next.processAdd(cmd);
                 }
+            } finally {
+                SharedAnalysisTextField.clear();
             }
+            return;
         }
         
-        if (next != null) {
-            next.processAdd(cmd);
+        boolean indexed = false;
+        try {
+            if (sourceAnalyzers != null && destinationField != null) {
+                SolrInputDocument doc = cmd.getSolrInputDocument();
+                boolean share = sharedFields != null && SharedAnalysisTextField.canShare();
+                for (Map.Entry<String, PoolingAnalyzerWrapper> entry : sourceAnalyzers.entrySet()) {
+                    String sourceFieldName = entry.getKey();
+                    Analyzer fieldAnalyzer = entry.getValue();
+                    Collection<Object> fieldValues = doc.getFieldValues(sourceFieldName);
+                    if (fieldValues != null && share && sharedFields.containsKey(sourceFieldName)) {
+                        shareAnalysis(doc, sourceFieldName, fieldValues);
+                    } else if (fieldValues != null) {
+                        for (Object value : fieldValues) {
+                            IndexableField fieldValue = new TextField(destinationField, fieldAnalyzer.tokenStream(sourceFieldName, value.toString()));
+                            doc.addField(destinationField, fieldValue);
+                        }
+                    }
+                }
+            }
+            
+            if (next != null) {
+                next.processAdd(cmd);
+            }
+            indexed = true;
+        } finally {
+            SharedAnalysisTextField.clear();
+            // and then release all the analyzers, readying them for re-use.  If indexing failed,
+            // the token streams may not have been closed, so their analysis chains are dropped instead.
+            if (sourceAnalyzers != null) {
+                for (Map.Entry<String, PoolingAnalyzerWrapper> entry : sourceAnalyzers.entrySet()) {
+                    if (indexed) {
+                        entry.getValue().release();
+                    } else {
+                        entry.getValue().discard();
+                    }
+                }
+            }
         }
-        
-        // and then release all the analyzers, readying them for re-use
-        for (Map.Entry<String, PoolingAnalyzerWrapper> entry : sourceAnalyzers.entrySet()) {
-            entry.getValue().release();
+    }
+    
+    /**
+     * Analyzes all the source field values concurrently, and adds them to the destination field
+     * as cached token streams, in the same order that they would otherwise have been added.
+     */
+    private void preAnalyzeFields(SolrInputDocument doc) throws IOException {
+        LinkedHashMap<String, ArrayList<Future<CachedTokenStream>>> analyzed = new LinkedHashMap<String, ArrayList<Future<CachedTokenStream>>>();
+        for (Map.Entry<String, Analyzer> entry : fieldAnalyzers.entrySet()) {
+            final String sourceFieldName = entry.getKey();
+            final Analyzer fieldAnalyzer = entry.getValue();
+            Collection<Object> fieldValues = doc.getFieldValues(sourceFieldName);
+            if (fieldValues != null) {
+                ArrayList<Future<CachedTokenStream>> fieldTokens = new ArrayList<Future<CachedTokenStream>>(fieldValues.size());
+                for (Object value : fieldValues) {
+                    final String text = value.toString();
+                    fieldTokens.add(analysisExecutor.submit(new Callable<CachedTokenStream>() {
+                        @Override
+                        public CachedTokenStream call() throws IOException {
+                            return new CachedTokenStream(fieldAnalyzer.tokenStream(sourceFieldName, text));
+                        }
+                    }));
+                }
+                analyzed.put(sourceFieldName, fieldTokens);
+            }
+        }
+        boolean share = sharedFields != null && SharedAnalysisTextField.canShare();
+        for (Map.Entry<String, ArrayList<Future<CachedTokenStream>>> entry : analyzed.entrySet()) {
+            String sourceFieldName = entry.getKey();
+            boolean shared = share && sharedFields.containsKey(sourceFieldName);
+            Iterator<Object> fieldValues = doc.getFieldValues(sourceFieldName).iterator();
+            Analyzer fieldAnalyzer = fieldAnalyzers.get(sourceFieldName);
+            for (Future<CachedTokenStream> future : entry.getValue()) {
+                Object value = fieldValues.next();
+                CachedTokenStream tokens;
+                try {
+                    tokens = future.get(ANALYSIS_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    // don't wait indefinitely for a stalled pool; analyze the value here instead
+                    future.cancel(false);
+                    tokens = new CachedTokenStream(fieldAnalyzer.tokenStream(sourceFieldName, value.toString()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SolrException(ErrorCode.SERVER_ERROR, "interrupted while analyzing " + destinationField, e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new SolrException(ErrorCode.SERVER_ERROR, "error analyzing " + destinationField, e.getCause());
+                }
+                if (shared) {
+                    SharedAnalysisTextField.share(sourceFieldName, value, tokens);
+                    tokens = tokens.copy();
+                }
+                doc.addField(destinationField, new TextField(destinationField, tokens));
+            }
+        }
+    }
+    
+    /**
+     * Analyzes the values of a source field that is indexed with the same analyzer used for merging
+     * only once, and indexes the same tokens both in the source field and in the destination field.
+     * The source field keeps its values; their tokens are passed to its {@link SharedAnalysisTextField}
+     * through the request.
+     */
+    private void shareAnalysis(SolrInputDocument doc, String sourceFieldName, Collection<Object> fieldValues) throws IOException {
+        Analyzer fieldAnalyzer = fieldAnalyzers.get(sourceFieldName);
+        for (Object value : fieldValues) {
+            CachedTokenStream tokens = new CachedTokenStream(fieldAnalyzer.tokenStream(sourceFieldName, value.toString()));
+            SharedAnalysisTextField.share(sourceFieldName, value, tokens);
+            doc.addField(destinationField, new TextField(destinationField, tokens.copy()));
         }
     }
     
@@ -17,32 +17,50 @@
 package com.ifactory.press.db.solr.processor;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrNamedThreadFactory;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TextField;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
 import org.apache.solr.util.plugin.SolrCoreAware;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ifactory.press.db.solr.analysis.PoolingAnalyzerWrapper;
+
 public class FieldMergingProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
     
     private static Logger log = LoggerFactory.getLogger(FieldMergingProcessorFactory.class);
+    private static final int DEFAULT_ANALYSIS_QUEUE_SIZE = 64;
     private String destinationField;
     private HashMap<String, Analyzer> sourceAnalyzers;
+    private HashMap<String, PoolingAnalyzerWrapper> pooledAnalyzers;
+    private HashMap<String, SchemaField> sharedFields;
     private IndexSchema schema;
     private NamedList<?> initArgs;
+    private ExecutorService analysisExecutor;
 
     @Override
     public void inform(SolrCore core) {
         schema = core.getLatestSchema();
         doInit();
+        initAnalysisExecutor(core);
     }
     
     @Override
@@ -92,12 +110,102 @@ public class FieldMergingProcessorFactory extends UpdateRequestProcessorFactory
                 sourceAnalyzers.put(sourceFieldName, fieldType.getIndexAnalyzer());
             }
         }
+        // the analysis chains are pooled for the life of the core, and shared by all requests
+        int poolMaxIdle = PoolingAnalyzerWrapper.DEFAULT_MAX_IDLE;
+        o = initArgs.get("poolMaxIdle");
+        if (o instanceof Integer) {
+            poolMaxIdle = (Integer) o;
+        } else if (o != null) {
+            log.error("poolMaxIdle must be an int, got " + o);
+        }
+        long poolMaxIdleMillis = PoolingAnalyzerWrapper.DEFAULT_MAX_IDLE_MILLIS;
+        o = initArgs.get("poolMaxIdleMillis");
+        if (o instanceof Number) {
+            poolMaxIdleMillis = ((Number) o).longValue();
+        } else if (o != null) {
+            log.error("poolMaxIdleMillis must be a number, got " + o);
+        }
+        pooledAnalyzers = FieldMergingProcessor.createPooledAnalyzers(sourceAnalyzers, poolMaxIdle, poolMaxIdleMillis);
+        if (Boolean.TRUE.equals(initArgs.get("shareAnalysis"))) {
+            initSharedFields();
+        }
+    }
+    
+    /**
+     * finds the source fields that are indexed in their own right using the same analyzer used for merging
+     */
+    private void initSharedFields () {
+        sharedFields = new HashMap<String, SchemaField>();
+        for (Map.Entry<String, Analyzer> entry : sourceAnalyzers.entrySet()) {
+            String sourceFieldName = entry.getKey();
+            SchemaField sourceField = schema.getFieldOrNull(sourceFieldName);
+            if (sourceField == null || ! sourceField.indexed() || ! sourceField.getType().isTokenized()
+                    || sourceField.hasDocValues() || ! (sourceField.getType() instanceof TextField)) {
+                continue;
+            }
+            if (! (sourceField.getType() instanceof SharedAnalysisTextField)) {
+                log.info("not sharing analysis of " + sourceFieldName + ": its type is not a SharedAnalysisTextField");
+                continue;
+            }
+            if (sourceField.getType().getIndexAnalyzer() != entry.getValue()) {
+                log.info("not sharing analysis of " + sourceFieldName + ": it is merged using a different analyzer");
+                continue;
+            }
+            if (! schema.getCopyFieldsList(sourceFieldName).isEmpty()) {
+                log.info("not sharing analysis of " + sourceFieldName + ": it is a copyField source");
+                continue;
+            }
+            sharedFields.put(sourceFieldName, sourceField);
+        }
+    }
 
+    private void initAnalysisExecutor (SolrCore core) {
+        Object o = initArgs.get("analysisThreads");
+        if (o == null) {
+            return;
+        }
+        if (! (o instanceof Integer)) {
+            log.error("analysisThreads must be an int, got " + o);
+            return;
+        }
+        int analysisThreads = (Integer) o;
+        if (analysisThreads <= 0) {
+            return;
+        }
+        int queueSize = DEFAULT_ANALYSIS_QUEUE_SIZE;
+        o = initArgs.get("analysisQueueSize");
+        if (o instanceof Integer && (Integer) o > 0) {
+            queueSize = (Integer) o;
+        } else if (o != null) {
+            log.error("analysisQueueSize must be a positive int, got " + o);
+        }
+        // when the queue is full, or the executor has been shut down as the core closes, the update
+        // thread performs the analysis itself: CallerRunsPolicy would drop the task after shutdown,
+        // leaving the update waiting for it
+        analysisExecutor = new ThreadPoolExecutor(analysisThreads, analysisThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new SolrNamedThreadFactory("fieldMergingAnalysis"),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        task.run();
+                    }
+                });
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore core) {
+                ExecutorUtil.shutdownAndAwaitTermination(analysisExecutor);
+            }
+
+            @Override
+            public void postClose(SolrCore core) {
+            }
+        });
     }
 
     @Override
     public FieldMergingProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
-        return new FieldMergingProcessor(destinationField, sourceAnalyzers, next);
+        return new FieldMergingProcessor(destinationField, sourceAnalyzers, pooledAnalyzers, sharedFields, analysisExecutor, next);
     }
 
 }
@@ -22,12 +22,22 @@ import com.ifactory.press.db.solr.spelling.suggest.MultiSuggester;
 public class MultiSuggesterCommitListener extends AbstractSolrEventListener {
 
   private final ArrayList<MultiSuggester> suggesters;
+  private final MultiSuggesterUpdateQueue updateQueue;
 
   private static final Logger LOG = LoggerFactory.getLogger(MultiSuggesterProcessor.class);
 
   public MultiSuggesterCommitListener(SolrCore core, ArrayList<MultiSuggester> suggesters) {
+    this(core, suggesters, null);
+  }
+
+  /**
+   * @param updateQueue if not null, the queue of asynchronous suggestion updates, which is flushed
+   * before the suggesters commit
+   */
+  public MultiSuggesterCommitListener(SolrCore core, ArrayList<MultiSuggester> suggesters, MultiSuggesterUpdateQueue updateQueue) {
     super(core);
     this.suggesters = suggesters;
+    this.updateQueue = updateQueue;
   }
   
   @Override
@@ -40,6 +50,23 @@ public class MultiSuggesterCommitListener extends AbstractSolrEventListener {
     doCommit();
   }
 
+  /**
+   * add suggestions from the terms of newly flushed segments, for suggesters configured to do so
+   */
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    if (getCore().isClosed()) {
+      return;
+    }
+    try {
+      for (MultiSuggester suggester : suggesters) {
+        suggester.commitSegments(newSearcher, currentSearcher);
+      }
+    } catch (IOException e) {
+      LOG.error("An IOException was thrown while adding segment terms to the spell suggestion index", e);
+    }
+  }
+
   // synchronized hoping to avoid issues from multiple asynchronous events
   private synchronized void doCommit() {
     if (getCore().isClosed()) {
@@ -47,6 +74,10 @@ public class MultiSuggesterCommitListener extends AbstractSolrEventListener {
     }
     RefCounted<SolrIndexSearcher> searcher = getCore().getSearcher();
     try {
+      // autoCommit and autoSoftCommit don't pass through the update processor, which flushes the queue
+      if (updateQueue != null) {
+        updateQueue.flush();
+      }
       for (MultiSuggester suggester : suggesters) {
         suggester.commit(searcher.get());
       }
@@ -2,32 +2,94 @@ package com.ifactory.press.db.solr.processor;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.RefCounted;
 
 import com.ifactory.press.db.solr.spelling.suggest.MultiSuggester;
 
 /**
  * This processor enables incremental updates (aka near-realtime updates) for AnalyzingInfixSuggester.
  * It is tied to a spell check component and discovers any MultiSuggesters configured for that component.
+ * 
+ * In asynchronous mode (when the factory is configured with <code>async</code>=true), suggestions are
+ * extracted by background workers from a bounded queue, rather than on the indexing thread.  Queued
+ * suggestions are flushed to the suggesters before they commit.
+ * 
+ * For suggesters that count references (configured with <code>countReferences</code>=true), the values
+ * of deleted documents, and of documents that are replaced by an add, are passed to
+ * {@link MultiSuggester#remove(SolrInputDocument)}, so suggestions no longer found in any document are
+ * hidden.  The values of a committed version are read from the core's searcher; those of a version that
+ * hasn't reached the searcher yet are kept in memory by the factory (see {@link UncommittedVersions}),
+ * so a document replaced or deleted more than once between commits removes each of its versions once.
+ * A delete by query reads every matching document from the searcher, and leaves alone the documents it
+ * matches that have a version the searcher doesn't include: their suggestions stay counted.
  */
 public class MultiSuggesterProcessor extends UpdateRequestProcessor {
     
     private final Collection<MultiSuggester> suggesters;
+    private final MultiSuggesterUpdateQueue updateQueue;
+    private final UncommittedVersions uncommitted;
 
     public MultiSuggesterProcessor(Collection<MultiSuggester> suggesters, UpdateRequestProcessor next) {
+        this(suggesters, null, next);
+    }
+
+    /**
+     * @param updateQueue if not null, documents are queued for asynchronous suggestion extraction
+     */
+    public MultiSuggesterProcessor(Collection<MultiSuggester> suggesters, MultiSuggesterUpdateQueue updateQueue, UpdateRequestProcessor next) {
+        this(suggesters, updateQueue, null, next);
+    }
+
+    /**
+     * @param uncommitted if not null, the versions of documents the core's searcher doesn't include yet;
+     * otherwise, the replaced or deleted version is always read from the searcher
+     */
+    MultiSuggesterProcessor(Collection<MultiSuggester> suggesters, MultiSuggesterUpdateQueue updateQueue, UncommittedVersions uncommitted,
+            UpdateRequestProcessor next) {
         super(next);
         this.suggesters = suggesters;
+        this.updateQueue = updateQueue;
+        this.uncommitted = uncommitted;
     }
 
     @Override
     public void processAdd(AddUpdateCommand cmd) throws IOException {
         SolrInputDocument doc = cmd.getSolrInputDocument();
-        for (MultiSuggester suggester : suggesters) {
-            suggester.add (doc, cmd.getReq().getSearcher());
+        if (cmd.overwrite && isCountingReferences()) {
+            BytesRef id = cmd.getIndexedId();
+            if (id != null) {
+                replace(cmd.getReq().getCore(), id, copySuggestionFields(doc));
+            }
+        }
+        if (updateQueue != null) {
+            updateQueue.add(doc);
+        } else {
+            for (MultiSuggester suggester : suggesters) {
+                suggester.add (doc, cmd.getReq().getSearcher());
+            }
         }
         if (next != null) {
             next.processAdd(cmd);
@@ -36,6 +98,9 @@ public class MultiSuggesterProcessor extends UpdateRequestProcessor {
     
     @Override
     public void processCommit(CommitUpdateCommand cmd) throws IOException {
+        if (updateQueue != null) {
+            updateQueue.flush();
+        }
         for (MultiSuggester suggester : suggesters) {
             suggester.commit (cmd.getReq().getSearcher());
         }
@@ -44,8 +109,126 @@ public class MultiSuggesterProcessor extends UpdateRequestProcessor {
         }
     }
     
-    // Note: what to do about deletions?  We don't have any good way to know when a suggestion is deleted
-    // since it could occur in multiple documents.  In throry we can either rebuild, or ref count, or ignore.  
-    // Only ignoring makes any sense though -- users will need to issue rebuild commands manually
+    @Override
+    public void processDelete(DeleteUpdateCommand cmd) throws IOException {
+        if (isCountingReferences()) {
+            if (cmd.isDeleteById()) {
+                replace(cmd.getReq().getCore(), cmd.getIndexedId(), UncommittedVersions.DELETED);
+            } else {
+                deleteByQuery(cmd);
+            }
+        }
+        if (next != null) {
+            next.processDelete(cmd);
+        }
+    }
+
+    private boolean isCountingReferences() {
+        for (MultiSuggester suggester : suggesters) {
+            if (suggester.isCountingReferences()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> getFieldNames() {
+        Set<String> fieldNames = new HashSet<String>();
+        for (MultiSuggester suggester : suggesters) {
+            if (suggester.isCountingReferences()) {
+                fieldNames.addAll(suggester.getFieldNames());
+            }
+        }
+        return fieldNames;
+    }
+
+    /**
+     * Removes the suggestions of the document's current version, and records its next version.
+     * The current version is read from the core's searcher (rather than the request's, which
+     * may have been opened before the version was committed) unless it hasn't been committed.
+     */
+    private void replace(SolrCore core, BytesRef id, SolrInputDocument values) throws IOException {
+        SolrInputDocument replaced = uncommitted == null ? null : uncommitted.put(id, values);
+        if (replaced != null) {
+            removeSuggestions(replaced);
+            return;
+        }
+        RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try {
+            SolrIndexSearcher s = searcher.get();
+            int docid = s.getFirstMatch(new Term(s.getSchema().getUniqueKeyField().getName(), id));
+            if (docid >= 0) {
+                removeSuggestions(readSuggestionFields(s, docid, getFieldNames()));
+            }
+        } finally {
+            searcher.decref();
+        }
+    }
+
+    private void deleteByQuery(DeleteUpdateCommand cmd) throws IOException {
+        Query query;
+        try {
+            query = QParser.getParser(cmd.getQuery(), cmd.getReq()).getQuery();
+        } catch (SyntaxError e) {
+            throw new SolrException(ErrorCode.BAD_REQUEST, e);
+        }
+        RefCounted<SolrIndexSearcher> searcher = cmd.getReq().getCore().getSearcher();
+        try {
+            SolrIndexSearcher s = searcher.get();
+            SchemaField uniqueKey = s.getSchema().getUniqueKeyField();
+            Set<String> fieldNames = getFieldNames();
+            BytesRefBuilder id = new BytesRefBuilder();
+            DocIterator docs = s.getDocSet(query).iterator();
+            while (docs.hasNext()) {
+                int docid = docs.nextDoc();
+                if (uncommitted != null) {
+                    Document stored = s.doc(docid, Collections.singleton(uniqueKey.getName()));
+                    uniqueKey.getType().readableToIndexed(stored.get(uniqueKey.getName()), id);
+                    if (uncommitted.get(id.get()) != null) {
+                        // whether the version replacing this one matches isn't known
+                        continue;
+                    }
+                    uncommitted.put(id.get(), UncommittedVersions.DELETED);
+                }
+                removeSuggestions(readSuggestionFields(s, docid, fieldNames));
+            }
+        } finally {
+            searcher.decref();
+        }
+    }
+
+    private SolrInputDocument copySuggestionFields(SolrInputDocument doc) {
+        SolrInputDocument values = new SolrInputDocument();
+        for (String fieldName : getFieldNames()) {
+            Collection<Object> fieldValues = doc.getFieldValues(fieldName);
+            if (fieldValues != null) {
+                for (Object value : fieldValues) {
+                    // copy as strings: the document's values may be modified further along the chain
+                    values.addField(fieldName, value.toString());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static SolrInputDocument readSuggestionFields(SolrIndexSearcher searcher, int docid, Set<String> fieldNames) throws IOException {
+        Document stored = searcher.doc(docid, fieldNames);
+        SolrInputDocument values = new SolrInputDocument();
+        for (IndexableField field : stored) {
+            if (field.stringValue() != null) {
+                values.addField(field.name(), field.stringValue());
+            }
+        }
+        return values;
+    }
+
+    private void removeSuggestions(SolrInputDocument values) throws IOException {
+        if (values.isEmpty()) {
+            return;
+        }
+        for (MultiSuggester suggester : suggesters) {
+            suggester.remove(values);
+        }
+    }
 
 }
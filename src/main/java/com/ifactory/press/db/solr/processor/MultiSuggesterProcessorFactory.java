@@ -2,6 +2,7 @@ package com.ifactory.press.db.solr.processor;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Locale;
 
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
@@ -26,6 +27,13 @@ public class MultiSuggesterProcessorFactory extends UpdateRequestProcessorFactor
     
     private final ArrayList<MultiSuggester> suggesters = new ArrayList<MultiSuggester>();
     
+    private boolean async;
+    private int asyncThreads = 1;
+    private int asyncQueueSize = 1000;
+    private MultiSuggesterUpdateQueue.Backpressure backpressure = MultiSuggesterUpdateQueue.Backpressure.BLOCK;
+    private MultiSuggesterUpdateQueue updateQueue;
+    private UncommittedVersions uncommitted;
+    
     private static final Logger LOG = LoggerFactory.getLogger(MultiSuggesterProcessor.class);
     
     
@@ -36,19 +44,58 @@ public class MultiSuggesterProcessorFactory extends UpdateRequestProcessorFactor
             throw new SolrException(ErrorCode.SERVER_ERROR, "Missing configuration: 'suggester-component'");
         }
         suggesterComponentName = componentName.toString();
+        async = Boolean.TRUE.equals(args.get("async"));
+        asyncThreads = positiveIntArg(args, "asyncThreads", asyncThreads);
+        asyncQueueSize = positiveIntArg(args, "asyncQueueSize", asyncQueueSize);
+        Object o = args.get("backpressure");
+        if (o != null) {
+            try {
+                backpressure = MultiSuggesterUpdateQueue.Backpressure.valueOf(o.toString().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new SolrException(ErrorCode.SERVER_ERROR, "Invalid backpressure: '" + o + "'; must be one of block, run, discard");
+            }
+        }
+    }
+    
+    // accepts an <int> or a <str>; logs an error, and keeps the default, for anything else
+    private static int positiveIntArg(@SuppressWarnings("rawtypes") NamedList args, String name, int defaultValue) {
+        Object o = args.get(name);
+        if (o == null) {
+            return defaultValue;
+        }
+        try {
+            int value = o instanceof Number ? ((Number) o).intValue() : Integer.parseInt(o.toString().trim());
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        LOG.error(name + " must be a positive int, got " + o);
+        return defaultValue;
     }
     
     @Override
     public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
-      return new MultiSuggesterProcessor(suggesters, next);
+      return new MultiSuggesterProcessor(suggesters, updateQueue, uncommitted, next);
     }
     
     @Override
     public void inform(SolrCore core) {
         
-      MultiSuggesterCommitListener listener = new MultiSuggesterCommitListener(core, suggesters);
+      if (async) {
+        // the suggesters are found below
+        updateQueue = new MultiSuggesterUpdateQueue(suggesters, asyncThreads, asyncQueueSize, backpressure);
+      }
+
+      MultiSuggesterCommitListener listener = new MultiSuggesterCommitListener(core, suggesters, updateQueue);
       core.getUpdateHandler().registerCommitCallback(listener);
       core.getUpdateHandler().registerSoftCommitCallback(listener);
+      core.registerNewSearcherListener(listener);
+
+      // the versions of replaced and deleted documents that suggesters counting references haven't seen
+      uncommitted = new UncommittedVersions(core);
+      core.registerNewSearcherListener(uncommitted);
       
       SpellCheckComponent suggesterComponent = (SpellCheckComponent) core.getSearchComponent(suggesterComponentName);
       if (suggesterComponent == null) {
@@ -61,11 +108,18 @@ public class MultiSuggesterProcessorFactory extends UpdateRequestProcessorFactor
           suggesters.add ((MultiSuggester) spellChecker);
         }
       }
-        
+      
       core.addCloseHook(new CloseHook() {
                 
         @Override
         public void preClose(SolrCore coreParam) {
+          if (updateQueue != null) {
+            try {
+              updateQueue.close();
+            } catch (IOException e) {
+              LOG.error("An exception occurred while closing the suggestion update queue", e);
+            }
+          }
         }
                 
         @Override
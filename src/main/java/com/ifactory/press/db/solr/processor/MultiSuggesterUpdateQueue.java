@@ -0,0 +1,181 @@
+package com.ifactory.press.db.solr.processor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrNamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ifactory.press.db.solr.spelling.suggest.MultiSuggester;
+
+/**
+ * A bounded queue of documents whose suggestions are extracted by background workers, used
+ * by MultiSuggesterProcessor in asynchronous mode. Only the values of the fields the
+ * suggesters draw from are copied into the queue.  When the queue is full, the
+ * {@link Backpressure} policy decides what happens to the next document.  {@link #flush()}
+ * is a barrier: it waits for every document queued before it was called.
+ */
+public class MultiSuggesterUpdateQueue {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MultiSuggesterUpdateQueue.class);
+
+  public enum Backpressure {
+    /** the indexing thread waits for room in the queue */
+    BLOCK,
+    /** the indexing thread extracts the suggestions itself */
+    RUN,
+    /** the document's suggestions are dropped (until the suggester is rebuilt) */
+    DISCARD
+  }
+
+  private final Collection<MultiSuggester> suggesters;
+  private final ThreadPoolExecutor executor;
+  private final Set<FutureTask<?>> outstanding;
+
+  public MultiSuggesterUpdateQueue(Collection<MultiSuggester> suggesters, int threads, int queueSize, Backpressure backpressure) {
+    this.suggesters = suggesters;
+    outstanding = ConcurrentHashMap.newKeySet();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize),
+        new SolrNamedThreadFactory("multiSuggesterUpdate"),
+        rejectionHandler(backpressure));
+  }
+
+  /**
+   * Queues the document's suggestion field values for addition to the suggesters.
+   */
+  public void add(SolrInputDocument doc) {
+    final SolrInputDocument values = copySuggestionFields(doc);
+    if (values.isEmpty()) {
+      return;
+    }
+    FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (MultiSuggester suggester : suggesters) {
+            suggester.add(values);
+          }
+        } catch (IOException e) {
+          throw new SolrException(ErrorCode.SERVER_ERROR, e);
+        }
+      }
+    }, null) {
+      @Override
+      protected void done() {
+        outstanding.remove(this);
+      }
+    };
+    outstanding.add(task);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      outstanding.remove(task);
+      throw e;
+    }
+  }
+
+  /**
+   * Waits until the suggestions of all documents queued before this call have been added to
+   * the suggesters' pending updates.
+   */
+  public void flush() throws IOException {
+    for (FutureTask<?> task : new ArrayList<FutureTask<?>>(outstanding)) {
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SolrException(ErrorCode.SERVER_ERROR, "interrupted while flushing suggestions", e);
+      } catch (ExecutionException e) {
+        LOG.error("An exception occurred while adding suggestions", e.getCause());
+      } catch (CancellationException e) {
+        // discarded
+      }
+    }
+  }
+
+  /**
+   * Flushes the queue and stops the workers.
+   */
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      ExecutorUtil.shutdownAndAwaitTermination(executor);
+    }
+  }
+
+  private SolrInputDocument copySuggestionFields(SolrInputDocument doc) {
+    SolrInputDocument values = new SolrInputDocument();
+    for (MultiSuggester suggester : suggesters) {
+      for (String fieldName : suggester.getFieldNames()) {
+        Collection<Object> fieldValues = doc.getFieldValues(fieldName);
+        if (fieldValues == null || values.containsKey(fieldName)) {
+          continue;
+        }
+        for (Object value : fieldValues) {
+          // copy as strings: the document's values may be modified further along the chain
+          values.addField(fieldName, value.toString());
+        }
+      }
+    }
+    return values;
+  }
+
+  private static RejectedExecutionHandler rejectionHandler(Backpressure backpressure) {
+    switch (backpressure) {
+    case RUN:
+      // unlike CallerRunsPolicy, this runs the task even once the executor has been shut down,
+      // so that it completes, and leaves the outstanding set
+      return new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+          r.run();
+        }
+      };
+    case DISCARD:
+      return new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+          LOG.warn("suggestion update queue is full; discarding suggestions");
+          ((FutureTask<?>) r).cancel(false);
+        }
+      };
+    case BLOCK:
+    default:
+      return new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+          if (executor.isShutdown()) {
+            throw new RejectedExecutionException("suggestion update queue is closed");
+          }
+          BlockingQueue<Runnable> queue = executor.getQueue();
+          try {
+            queue.put(r);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ((FutureTask<?>) r).cancel(false);
+          }
+        }
+      };
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Safari Books Online
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr.processor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TextField;
+
+/**
+ * A TextField whose values may be indexed with tokens that were already analyzed during the
+ * current request, by {@link FieldMergingProcessor} when it shares the analysis of a source field
+ * with its destination field.  The document keeps the original values, so other update processors,
+ * the transaction log and distributed updates see only those; the tokens are kept in the request's
+ * context, keyed by field and by value (by identity), and are taken from there when the document is
+ * indexed.  Values without tokens are analyzed as usual.
+ */
+public class SharedAnalysisTextField extends TextField {
+
+    @Override
+    public IndexableField createField(SchemaField field, Object value) {
+        IndexableField indexableField = super.createField(field, value);
+        if (indexableField instanceof Field) {
+            TokenStream tokens = take(field.getName(), value);
+            if (tokens != null) {
+                ((Field) indexableField).setTokenStream(tokens);
+            }
+        }
+        return indexableField;
+    }
+
+    /**
+     * Records the tokens to index for a value of a field in the current request.
+     * @return false if there is no current request, in which case the tokens won't be used
+     */
+    static boolean share(String fieldName, Object value, TokenStream tokens) {
+        Map<String, IdentityHashMap<Object, ArrayDeque<TokenStream>>> shared = getShared(true);
+        if (shared == null) {
+            return false;
+        }
+        IdentityHashMap<Object, ArrayDeque<TokenStream>> fieldTokens = shared.get(fieldName);
+        if (fieldTokens == null) {
+            fieldTokens = new IdentityHashMap<Object, ArrayDeque<TokenStream>>();
+            shared.put(fieldName, fieldTokens);
+        }
+        ArrayDeque<TokenStream> valueTokens = fieldTokens.get(value);
+        if (valueTokens == null) {
+            // the same value may be repeated in a multi-valued field
+            valueTokens = new ArrayDeque<TokenStream>(1);
+            fieldTokens.put(value, valueTokens);
+        }
+        valueTokens.add(tokens);
+        return true;
+    }
+
+    /**
+     * @return whether the current request can share tokens
+     */
+    static boolean canShare() {
+        return SolrRequestInfo.getRequestInfo() != null;
+    }
+
+    /**
+     * Forgets the current request's shared tokens; those that weren't indexed are discarded.
+     */
+    static void clear() {
+        SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+        if (requestInfo != null) {
+            requestInfo.getReq().getContext().remove(SharedAnalysisTextField.class);
+        }
+    }
+
+    private static TokenStream take(String fieldName, Object value) {
+        Map<String, IdentityHashMap<Object, ArrayDeque<TokenStream>>> shared = getShared(false);
+        if (shared == null) {
+            return null;
+        }
+        IdentityHashMap<Object, ArrayDeque<TokenStream>> fieldTokens = shared.get(fieldName);
+        if (fieldTokens == null) {
+            return null;
+        }
+        ArrayDeque<TokenStream> valueTokens = fieldTokens.get(value);
+        return valueTokens == null ? null : valueTokens.poll();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, IdentityHashMap<Object, ArrayDeque<TokenStream>>> getShared(boolean create) {
+        SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+        if (requestInfo == null) {
+            return null;
+        }
+        Map<Object, Object> context = requestInfo.getReq().getContext();
+        Map<String, IdentityHashMap<Object, ArrayDeque<TokenStream>>> shared =
+                (Map<String, IdentityHashMap<Object, ArrayDeque<TokenStream>>>) context.get(SharedAnalysisTextField.class);
+        if (shared == null && create) {
+            shared = new HashMap<String, IdentityHashMap<Object, ArrayDeque<TokenStream>>>();
+            context.put(SharedAnalysisTextField.class, shared);
+        }
+        return shared;
+    }
+
+}
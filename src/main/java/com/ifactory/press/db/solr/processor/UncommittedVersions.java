@@ -0,0 +1,61 @@
+package com.ifactory.press.db.solr.processor;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * The suggestion field values of the documents added or deleted since the core's searcher was opened,
+ * by unique key, so that MultiSuggesterProcessor removes the suggestions of the version a document
+ * replaces even when that version hasn't been committed, and so can't be read from the searcher.  A
+ * deleted document is recorded with no values.
+ *
+ * A version is kept until a searcher that includes it has been registered: each new searcher retires
+ * the versions recorded before it was opened, which are dropped when the searcher after it is opened.
+ * Searchers run their listeners, and are registered, in the order they are opened.
+ */
+class UncommittedVersions extends AbstractSolrEventListener {
+
+  static final SolrInputDocument DELETED = new SolrInputDocument();
+
+  private volatile ConcurrentHashMap<BytesRef, SolrInputDocument> current = new ConcurrentHashMap<BytesRef, SolrInputDocument>();
+  private volatile ConcurrentHashMap<BytesRef, SolrInputDocument> retired = new ConcurrentHashMap<BytesRef, SolrInputDocument>();
+
+  UncommittedVersions(SolrCore core) {
+    super(core);
+  }
+
+  /**
+   * Records the latest version of a document.
+   *
+   * @param id the document's indexed unique key
+   * @param values the version's suggestion field values, or {@link #DELETED}
+   * @return the values of the version it replaces, if that hasn't been committed, or null if the
+   * version it replaces (if any) is to be read from the searcher
+   */
+  SolrInputDocument put(BytesRef id, SolrInputDocument values) {
+    BytesRef key = BytesRef.deepCopyOf(id);
+    SolrInputDocument replaced = current.put(key, values);
+    return replaced != null ? replaced : retired.get(key);
+  }
+
+  /**
+   * @return the values of the document's latest uncommitted version, or null if it has none
+   */
+  SolrInputDocument get(BytesRef id) {
+    SolrInputDocument values = current.get(id);
+    return values != null ? values : retired.get(id);
+  }
+
+  @Override
+  public synchronized void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    // the searcher this one follows has been registered, and includes the retired versions
+    retired = current;
+    current = new ConcurrentHashMap<BytesRef, SolrInputDocument>();
+  }
+
+}
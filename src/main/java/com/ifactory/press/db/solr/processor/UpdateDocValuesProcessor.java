@@ -11,6 +11,7 @@ import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.update.AddUpdateCommand;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
@@ -33,11 +34,17 @@ import org.slf4j.LoggerFactory;
  *
  * Note that the key field match is performed using a TermQuery, so the provided key must match an indexed term exactly.
  * For this reason, it's recommended to use this feature with unanalyzed identifier-style fields.
+ *
+ * If parameter <code>updatedv.block</code> is true, key updates are also propagated to all of the block-join children
+ * of the matching document, using a single update keyed on the schema's <code>_root_</code> field.  The input
+ * document must then provide its uniqueKey value.  Any child documents sent explicitly are applied afterwards, so
+ * their values override the propagated one.
  */
 public class UpdateDocValuesProcessor extends UpdateRequestProcessor {
 
   public static final String UPDATEDV_VALUE_FIELD = "updatedv.value.field";
   public static final String UPDATEDV_KEY_FIELD = "updatedv.key.field";
+  public static final String UPDATEDV_BLOCK = "updatedv.block";
 
   private final SolrCore core;
   private final String idField;
@@ -59,7 +66,7 @@ public class UpdateDocValuesProcessor extends UpdateRequestProcessor {
       if (valueFields == null) {
         throw new SolrException(ErrorCode.BAD_REQUEST, "missing parameter updatedv.value.field");
       }
-      updateDocValues(keyField, valueFields, cmd);
+      updateDocValues(keyField, valueFields, params.getBool(UPDATEDV_BLOCK, false), cmd);
     } else {
       if (valueFields != null) {
         retrieveDocValues(cmd, valueFields);
@@ -70,38 +77,65 @@ public class UpdateDocValuesProcessor extends UpdateRequestProcessor {
     }
   }
 
-  private void updateDocValues(String keyField, String[] valueFields, AddUpdateCommand cmd) throws IOException {
+  private void updateDocValues(String keyField, String[] valueFields, boolean block, AddUpdateCommand cmd) throws IOException {
     RefCounted<IndexWriter> iwref = core.getSolrCoreState().getIndexWriter(core);
     try {
       IndexWriter iw = iwref.get();
       SolrInputDocument solrInputDocument = cmd.getSolrInputDocument();
-      updateDocValuesHelper(keyField, valueFields, iw, solrInputDocument);
+      if (block) {
+        updateBlockDocValues(valueFields, iw, solrInputDocument);
+      }
+      updateDocValuesHelper(keyField, valueFields, block, iw, solrInputDocument);
     } finally {
       iwref.decref();
     }
   }
 
-  private void updateDocValuesHelper(String keyField, String[] valueFields, IndexWriter iw, SolrInputDocument solrInputDocument) throws IOException {
+  private void updateDocValuesHelper(String keyField, String[] valueFields, boolean block, IndexWriter iw, SolrInputDocument solrInputDocument) throws IOException {
     String key = getStringValue(solrInputDocument, keyField);
     if (key == null) {
       throw new SolrException(ErrorCode.BAD_REQUEST, "no value for updatedv.key.field " + keyField);
     }
-    Term term = new Term(keyField, key);
-    LOG.debug(String.format("update docvalues %s", term));
-    for (String valueField : valueFields) {
-      long value = getLongValue(solrInputDocument, valueField);
-      iw.updateNumericDocValue(term, valueField, value);
+    // in block mode the _root_ update has already covered the parent document
+    if (!block) {
+      Term term = new Term(keyField, key);
+      LOG.debug(String.format("update docvalues %s", term));
+      for (String valueField : valueFields) {
+        long value = getLongValue(solrInputDocument, valueField);
+        iw.updateNumericDocValue(term, valueField, value);
+      }
     }
     // update values of child documents, too
     List<SolrInputDocument> childDocuments = solrInputDocument.getChildDocuments();
     if (childDocuments != null) {
       LOG.debug("Updating docvalues for children docs.");
       for (SolrInputDocument childDocument : childDocuments) {
-        updateDocValuesHelper (keyField, valueFields, iw, childDocument);
+        updateDocValuesHelper (keyField, valueFields, false, iw, childDocument);
       }
     }
   }
 
+  /**
+   * Updates the docvalues of an entire block (the parent and all of its children) with a single update per value
+   * field, keyed on the <code>_root_</code> term, which Solr sets to the parent's uniqueKey for every document in
+   * the block.
+   */
+  private void updateBlockDocValues(String[] valueFields, IndexWriter iw, SolrInputDocument solrInputDocument) throws IOException {
+    if (!core.getLatestSchema().isUsableForChildDocs()) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "updatedv.block requires a " + IndexSchema.ROOT_FIELD_NAME + " field in the schema");
+    }
+    String rootId = getStringValue(solrInputDocument, idField);
+    if (rootId == null) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, "updatedv.block requires a value for the uniqueKey field " + idField);
+    }
+    Term term = new Term(IndexSchema.ROOT_FIELD_NAME, rootId);
+    LOG.debug(String.format("update block docvalues %s", term));
+    for (String valueField : valueFields) {
+      long value = getLongValue(solrInputDocument, valueField);
+      iw.updateNumericDocValue(term, valueField, value);
+    }
+  }
+
   private void retrieveDocValues(AddUpdateCommand cmd, String[] valueFields) throws IOException {
     // retrieve an existing value, apply a default value
     SolrInputDocument doc = cmd.getSolrInputDocument();
@@ -0,0 +1,148 @@
+package com.ifactory.press.db.solr.search;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.QueryParsing;
+
+/**
+ * A bounded LRU cache of the queries built by {@link SafariQueryParser}, keyed by the query string
+ * and the parameters edismax parses it with, including the per-alias <code>f.&lt;alias&gt;.qf</code>
+ * parameters.  Entries are only returned for the schema they were
+ * parsed with, and, if they depend on the index, for the same index reader.  Queries that refer to
+ * other parameters, or to the current time, are not cached.
+ */
+final class ParsedQueryCache {
+
+  // the parameters that edismax and SafariQueryParser parse queries with
+  private static final String[] PARAMS = { DisMaxParams.QF, DisMaxParams.PF, DisMaxParams.PF2, DisMaxParams.PF3,
+      DisMaxParams.PS, DisMaxParams.PS2, DisMaxParams.PS3, DisMaxParams.QS, DisMaxParams.TIE, DisMaxParams.MM,
+      DisMaxParams.MM_AUTORELAX, DisMaxParams.BQ, DisMaxParams.BF, DisMaxParams.ALTQ, "boost", "uf",
+      "lowercaseOperators", "stopwords", "sow", CommonParams.DF, QueryParsing.OP, SafariQueryParser.PQF,
+      SafariQueryParser.PQF_PRUNE, SafariQueryParser.PQF_SHINGLES };
+
+  // the query fields of a field alias: f.<alias>.qf
+  private static final String ALIAS_PREFIX = "f.";
+  private static final String ALIAS_SUFFIX = "." + DisMaxParams.QF;
+
+  private final Map<String, Entry> entries;
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+
+  ParsedQueryCache(final int size) {
+    entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > size;
+      }
+    });
+  }
+
+  /**
+   * @return the cache key of the query string parsed with the given parameters, or null if the
+   *         query can't be cached
+   */
+  static String getKey(String qstr, SolrParams params) {
+    if (qstr == null || !isCacheable(qstr)) {
+      return null;
+    }
+    StringBuilder key = new StringBuilder(qstr);
+    for (String name : PARAMS) {
+      if (!appendParam(key, name, params)) {
+        return null;
+      }
+    }
+    // field aliases, in a fixed order
+    TreeSet<String> aliases = new TreeSet<String>();
+    for (Iterator<String> names = params.getParameterNamesIterator(); names.hasNext();) {
+      String name = names.next();
+      if (name.startsWith(ALIAS_PREFIX) && name.endsWith(ALIAS_SUFFIX)) {
+        aliases.add(name);
+      }
+    }
+    for (String name : aliases) {
+      if (!appendParam(key, name, params)) {
+        return null;
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return false if the parameter's value can't be cached
+   */
+  private static boolean appendParam(StringBuilder key, String name, SolrParams params) {
+    String[] values = params.getParams(name);
+    if (values == null) {
+      return true;
+    }
+    key.append('\u0000').append(name);
+    for (String value : values) {
+      if (!isCacheable(value)) {
+        return false;
+      }
+      key.append('\u0001').append(value);
+    }
+    return true;
+  }
+
+  private static boolean isCacheable(String s) {
+    // parameter references, nested queries (which may read other parameters) and date math
+    return s.indexOf('$') < 0 && !s.contains("{!") && !s.contains("_query_") && !s.contains("NOW");
+  }
+
+  /**
+   * @param readerKey the cache key of the index reader, if the query depends on the index, or null
+   */
+  Entry get(String key, IndexSchema schema, Object readerKey) {
+    lookups.incrementAndGet();
+    Entry entry = entries.get(key);
+    if (entry == null || entry.schema != schema || entry.readerKey != readerKey) {
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry;
+  }
+
+  void put(String key, Entry entry) {
+    entries.put(key, entry);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  long getLookups() {
+    return lookups.get();
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  static final class Entry {
+    final Query query;
+    final Query highlightQuery;
+    final String[] highlightFields;
+    final IndexSchema schema;
+    final Object readerKey;
+
+    Entry(Query query, Query highlightQuery, String[] highlightFields, IndexSchema schema, Object readerKey) {
+      this.query = query;
+      this.highlightQuery = highlightQuery;
+      this.highlightFields = highlightFields;
+      this.schema = schema;
+      this.readerKey = readerKey;
+    }
+  }
+
+}
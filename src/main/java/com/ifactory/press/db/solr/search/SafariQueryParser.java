@@ -1,10 +1,25 @@
 package com.ifactory.press.db.solr.search;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.ExtendedDismaxQParser;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.SyntaxError;
@@ -13,21 +28,128 @@ import org.apache.solr.util.SolrPluginUtils;
 /**
  * Adds to the edismax parser the ability to specify a distinct set of fields to be used  
  * as the target fields for user-specified phrases (query clauses wrapped in double quotes).
+ * Parsers created by {@link SafariQueryParserPlugin} may share a cache of parsed queries.
  */
 public class SafariQueryParser extends ExtendedDismaxQParser {
 
   public static final String PQF = "pqf";
 
+  /**
+   * If true, phrase field clauses are dropped when a term of the phrase doesn't occur in that
+   * field in the index being searched.
+   */
+  public static final String PQF_PRUNE = "pqf.prune";
+
+  /**
+   * Pairs of phrase fields and their companion shingle fields, as field:shingleField separated by
+   * whitespace or commas.  A shingle field must index the word bigrams (separated by a single space,
+   * without unigrams) of the same tokens as its phrase field: phrases on the phrase field are searched
+   * as bigram terms or phrases of bigrams on the shingle field, which have much shorter postings than
+   * common words.  Phrases on multi-valued phrase fields are not rewritten: shingles don't span values,
+   * so positions between values can't be matched the way the phrase field's position gap matches them.
+   */
+  public static final String PQF_SHINGLES = "pqf.shingles";
+
   // NOTE: must be the same as the IFN that ExtendedDismaxQParser uses
   private static final String IMPOSSIBLE_FIELD_NAME = "\uFFFC\uFFFC\uFFFC";
   private static final String IMPOSSIBLE_PHRASE_FIELD_NAME = IMPOSSIBLE_FIELD_NAME + "-p";
 
-  private Map<String,Float> phraseFields;
+  private final Map<String,Float> phraseFields;
+
+  private final ParsedQueryCache queryCache;
+
+  private final boolean prunePhraseFields;
+
+  private final Map<String,String> shingleFields;
+
+  // the cache entry the query was taken from, if it was
+  private ParsedQueryCache.Entry cached;
 
   public SafariQueryParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    this(qstr, localParams, params, req,
+        SolrPluginUtils.parseFieldBoosts(SolrParams.wrapDefaults(localParams, params).getParams(PQF)));
+  }
+
+  /**
+   * @param phraseFields the parsed phrase fields (pqf); they are shared by all the parser's
+   * query parsers, and not modified
+   */
+  public SafariQueryParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req,
+      Map<String,Float> phraseFields) {
+    this(qstr, localParams, params, req, phraseFields, null);
+  }
+
+  SafariQueryParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req,
+      Map<String,Float> phraseFields, ParsedQueryCache queryCache) {
     super(qstr, localParams, params, req);
+    this.phraseFields = phraseFields;
+    this.queryCache = queryCache;
     SolrParams solrParams = SolrParams.wrapDefaults(localParams, params);
-    phraseFields = SolrPluginUtils.parseFieldBoosts(solrParams.getParams(PQF));
+    prunePhraseFields = solrParams.getBool(PQF_PRUNE, false);
+    shingleFields = parseShingleFields(solrParams.getParams(PQF_SHINGLES));
+  }
+
+  private static Map<String,String> parseShingleFields(String[] values) {
+    if (values == null) {
+      return Collections.emptyMap();
+    }
+    Map<String,String> fields = new HashMap<String,String>();
+    for (String value : values) {
+      for (String pair : value.trim().split("[\\s,]+")) {
+        if (pair.isEmpty()) {
+          continue;
+        }
+        int colon = pair.indexOf(':');
+        if (colon <= 0 || colon == pair.length() - 1) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, PQF_SHINGLES + " must be field:shingleField pairs: " + value);
+        }
+        fields.put(pair.substring(0, colon), pair.substring(colon + 1));
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Returns the cached query, if there is one, or parses the query, and caches it.  The query is
+   * not cached when debugging, since edismax's debug information isn't.
+   */
+  @Override
+  public Query parse() throws SyntaxError {
+    SolrParams reqParams = req.getParams();
+    if (queryCache == null || reqParams.getBool(CommonParams.DEBUG_QUERY, false) || reqParams.get(CommonParams.DEBUG) != null) {
+      return super.parse();
+    }
+    String key = ParsedQueryCache.getKey(qstr, SolrParams.wrapDefaults(localParams, params));
+    if (key == null) {
+      return super.parse();
+    }
+    Object readerKey = null;
+    if (prunePhraseFields) {
+      // pruned queries depend on the index
+      IndexReader.CacheHelper cacheHelper = req.getSearcher().getIndexReader().getReaderCacheHelper();
+      if (cacheHelper == null) {
+        return super.parse();
+      }
+      readerKey = cacheHelper.getKey();
+    }
+    cached = queryCache.get(key, req.getSchema(), readerKey);
+    if (cached != null) {
+      return cached.query;
+    }
+    Query query = super.parse();
+    queryCache.put(key, new ParsedQueryCache.Entry(query, super.getHighlightQuery(), super.getDefaultHighlightFields(),
+        req.getSchema(), readerKey));
+    return query;
+  }
+
+  @Override
+  public Query getHighlightQuery() throws SyntaxError {
+    return cached != null ? cached.highlightQuery : super.getHighlightQuery();
+  }
+
+  @Override
+  public String[] getDefaultHighlightFields() {
+    return cached != null ? cached.highlightFields.clone() : super.getDefaultHighlightFields();
   }
   
   /**
@@ -39,6 +161,10 @@ public class SafariQueryParser extends ExtendedDismaxQParser {
     SafariSolrQueryParser qp = new SafariSolrQueryParser(qParser, field);
     if (phraseFields != null && ! phraseFields.isEmpty()) {
       qp.addAlias(IMPOSSIBLE_PHRASE_FIELD_NAME, 0.0f, phraseFields);
+      if (prunePhraseFields) {
+        qp.setPruningReader(req.getSearcher().getIndexReader());
+      }
+      qp.setShingleFields(shingleFields);
     }
     return qp;
   }
@@ -46,21 +172,143 @@ public class SafariQueryParser extends ExtendedDismaxQParser {
   
   
   static public class SafariSolrQueryParser extends ExtendedSolrQueryParser {
+
+    private IndexReader pruningReader;
+
+    private Map<String,String> shingleFields = Collections.emptyMap();
     
     public SafariSolrQueryParser(QParser parser, String defaultField) {
       super(parser, defaultField);
     }
+
+    /**
+     * @param reader if not null, phrase field clauses having a term that doesn't occur in the reader
+     * are dropped
+     */
+    public void setPruningReader(IndexReader reader) {
+      pruningReader = reader;
+    }
+
+    /**
+     * @param shingleFields the companion shingle field of each phrase field that has one
+     */
+    public void setShingleFields(Map<String,String> shingleFields) {
+      this.shingleFields = shingleFields;
+    }
     
     @Override
     protected Query getFieldQuery(String field, String val, int slop) throws SyntaxError {
       if (IMPOSSIBLE_FIELD_NAME.equals(field)) {
         if (getAlias(IMPOSSIBLE_PHRASE_FIELD_NAME) != null) {
           // Use phrase fields (value of QPF parameter) when present and no explicit field was specified
-          return super.getFieldQuery(IMPOSSIBLE_PHRASE_FIELD_NAME, val, slop);
+          Query query = super.getFieldQuery(IMPOSSIBLE_PHRASE_FIELD_NAME, val, slop);
+          if (shingleFields.isEmpty() && pruningReader == null) {
+            return query;
+          }
+          return rewritePhraseFields(query);
         }
       }
       return super.getFieldQuery(field, val, slop);
     }
+
+    /**
+     * Rewrites the disjuncts of a phrase field query against their shingle fields, and, if pruning,
+     * drops those that can't match, since one of their terms doesn't occur in the index.  Pruning
+     * doesn't change the results, or their scores.
+     */
+    private Query rewritePhraseFields(Query query) throws SyntaxError {
+      if (!(query instanceof DisjunctionMaxQuery)) {
+        return query;
+      }
+      DisjunctionMaxQuery dmq = (DisjunctionMaxQuery) query;
+      List<Query> disjuncts = new ArrayList<Query>(dmq.getDisjuncts().size());
+      boolean rewritten = false;
+      try {
+        for (Query disjunct : dmq) {
+          Query shingled = shingle(disjunct);
+          rewritten |= shingled != disjunct;
+          if (pruningReader == null || canMatch(shingled)) {
+            disjuncts.add(shingled);
+          }
+        }
+      } catch (IOException e) {
+        throw new SyntaxError("failed to read terms: " + e.getMessage(), e);
+      }
+      if (!rewritten && disjuncts.size() == dmq.getDisjuncts().size()) {
+        return query;
+      }
+      if (disjuncts.isEmpty()) {
+        return new MatchNoDocsQuery("no phrase field contains every term");
+      }
+      return new DisjunctionMaxQuery(disjuncts, dmq.getTieBreakerMultiplier());
+    }
+
+    /**
+     * @return the equivalent of an exact phrase query, of two or more consecutive terms, on a field that
+     * has a shingle field: a bigram term query, or a phrase query of bigrams, on the shingle field.  Other
+     * queries are returned unchanged.
+     */
+    private Query shingle(Query query) {
+      Query unboosted = query instanceof BoostQuery ? ((BoostQuery) query).getQuery() : query;
+      if (!(unboosted instanceof PhraseQuery)) {
+        return query;
+      }
+      PhraseQuery phrase = (PhraseQuery) unboosted;
+      Term[] terms = phrase.getTerms();
+      int[] positions = phrase.getPositions();
+      if (phrase.getSlop() != 0 || terms.length < 2) {
+        return query;
+      }
+      String shingleField = shingleFields.get(terms[0].field());
+      if (shingleField == null) {
+        return query;
+      }
+      SchemaField phraseField = schema.getFieldOrNull(terms[0].field());
+      if (phraseField == null || phraseField.multiValued()) {
+        // no bigram spans two values, and successive values' bigrams may be adjacent
+        return query;
+      }
+      for (int i = 1; i < positions.length; i++) {
+        if (positions[i] != positions[0] + i) {
+          // a gap, such as a removed stop word, is indexed as a filler token, which we can't predict
+          return query;
+        }
+      }
+      Query shingled;
+      if (terms.length == 2) {
+        // a single bigram needs no positions
+        shingled = new TermQuery(bigram(shingleField, terms[0], terms[1]));
+      } else {
+        PhraseQuery.Builder builder = new PhraseQuery.Builder();
+        for (int i = 0; i < terms.length - 1; i++) {
+          builder.add(bigram(shingleField, terms[i], terms[i + 1]), i);
+        }
+        shingled = builder.build();
+      }
+      return query instanceof BoostQuery ? new BoostQuery(shingled, ((BoostQuery) query).getBoost()) : shingled;
+    }
+
+    private static Term bigram(String field, Term first, Term second) {
+      return new Term(field, first.text() + ' ' + second.text());
+    }
+
+    private boolean canMatch(Query query) throws IOException {
+      while (query instanceof BoostQuery) {
+        query = ((BoostQuery) query).getQuery();
+      }
+      if (query instanceof TermQuery) {
+        return pruningReader.docFreq(((TermQuery) query).getTerm()) > 0;
+      }
+      if (query instanceof PhraseQuery) {
+        for (Term term : ((PhraseQuery) query).getTerms()) {
+          if (pruningReader.docFreq(term) == 0) {
+            return false;
+          }
+        }
+      }
+      // other queries (synonyms, multi-phrases) are kept
+      return true;
+    }
     
   }
 
@@ -1,25 +1,118 @@
 package com.ifactory.press.db.solr.search;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.Gauge;
+
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.metrics.SolrMetricProducer;
+import org.apache.solr.metrics.SolrMetricsContext;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParserPlugin;
+import org.apache.solr.util.SolrPluginUtils;
 
 /**
  * Creates a parser based on the edismax parser (extended extended dismax?) with Safari customizations.
  * See Wiki page http://wiki.apache.org/solr/ExtendedDisMax
+ *
+ * The phrase fields (pqf) are parsed once for each distinct value, which is usually a handler default,
+ * and cached.  The pqfCacheSize init parameter bounds the number of values cached (default 64).
+ *
+ * If the queryCacheSize init parameter is set, up to that many parsed queries are cached, keyed by
+ * the query string and the parameters that affect its parsing, and shared by all requests using the
+ * same schema.  The cache's lookups, hits, hit ratio and size are reported as QUERYPARSER.safari.queryCache.*
+ * metrics of the core.
  */
-public class SafariQueryParserPlugin extends QParserPlugin {
+public class SafariQueryParserPlugin extends QParserPlugin implements SolrMetricProducer {
   
   public static final String NAME = "safari";
+
+  public static final int DEFAULT_PQF_CACHE_SIZE = 64;
+
+  private final Map<String, Map<String, Float>> phraseFieldCache = new ConcurrentHashMap<String, Map<String, Float>>();
+
+  private int pqfCacheSize = DEFAULT_PQF_CACHE_SIZE;
+
+  private ParsedQueryCache queryCache;
+
+  private volatile SolrMetricsContext solrMetricsContext;
   
   @Override
   public void init(@SuppressWarnings("rawtypes") NamedList args) {
+    if (args != null && args.get("pqfCacheSize") != null) {
+      pqfCacheSize = Integer.parseInt(args.get("pqfCacheSize").toString());
+    }
+    if (args != null && args.get("queryCacheSize") != null) {
+      int queryCacheSize = Integer.parseInt(args.get("queryCacheSize").toString());
+      if (queryCacheSize > 0) {
+        queryCache = new ParsedQueryCache(queryCacheSize);
+      }
+    }
   }
 
   @Override
   public SafariQueryParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
-    return new SafariQueryParser(qstr, localParams, params, req);
+    if (queryCache != null && solrMetricsContext == null && req.getCore() != null) {
+      // query parser plugins aren't given the core, so register the metrics when it's first seen
+      synchronized (this) {
+        if (solrMetricsContext == null && req.getCore().getSolrMetricsContext() != null) {
+          initializeMetrics(req.getCore().getSolrMetricsContext(), NAME);
+        }
+      }
+    }
+    return new SafariQueryParser(qstr, localParams, params, req, getPhraseFields(SolrParams.wrapDefaults(localParams, params)), queryCache);
+  }
+
+  @Override
+  public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+    SolrMetricsContext context = parentContext.getChildContext(this);
+    String category = getCategory().toString();
+    if (queryCache != null) {
+      context.gauge(null, (Gauge<Long>) () -> queryCache.getLookups(), true, "queryCache.lookups", category, scope);
+      context.gauge(null, (Gauge<Long>) () -> queryCache.getHits(), true, "queryCache.hits", category, scope);
+      context.gauge(null, (Gauge<Double>) () -> {
+        long lookups = queryCache.getLookups();
+        return lookups == 0 ? 0.0 : (double) queryCache.getHits() / lookups;
+      }, true, "queryCache.hitratio", category, scope);
+      context.gauge(null, (Gauge<Integer>) () -> queryCache.size(), true, "queryCache.size", category, scope);
+    }
+    solrMetricsContext = context;
+  }
+
+  @Override
+  public SolrMetricsContext getSolrMetricsContext() {
+    return solrMetricsContext;
+  }
+
+  /**
+   * @return the cache of parsed queries, or null if there is none
+   */
+  ParsedQueryCache getQueryCache() {
+    return queryCache;
+  }
+
+  /**
+   * @return the parsed phrase fields (pqf) of the params, which must not be modified
+   */
+  Map<String, Float> getPhraseFields(SolrParams params) {
+    String[] pqf = params.getParams(SafariQueryParser.PQF);
+    if (pqf == null || pqf.length == 0) {
+      return Collections.emptyMap();
+    }
+    String key = pqf.length == 1 ? pqf[0] : String.join("\u0000", pqf);
+    Map<String, Float> phraseFields = phraseFieldCache.get(key);
+    if (phraseFields == null) {
+      phraseFields = Collections.unmodifiableMap(SolrPluginUtils.parseFieldBoosts(pqf));
+      if (phraseFieldCache.size() >= pqfCacheSize) {
+        // there are normally only a few distinct values; if requests are supplying many, start over
+        phraseFieldCache.clear();
+      }
+      phraseFieldCache.put(key, phraseFields);
+    }
+    return phraseFields;
   }
   
 }
@@ -40,6 +40,10 @@ public class MultiDictionary implements Dictionary {
     return new MultiInputIterator();
   }
 
+  /**
+   * @return s, without any leading or trailing characters that are not letters or digits
+   *         (including ideographs and all surrogates); s itself if there are none
+   */
   public static String stripAfflatus(String s) {
     // strip off non-letters and digits (incl. ideographics and all surrogates)
     int i = 0;
@@ -60,12 +64,102 @@ public class MultiDictionary implements Dictionary {
         break;
       }
     }
-    if (j - i == length) {
+    if (i == 0 && j == length - 1) {
       return s;
     }
     return s.substring(i, j + 1);
   }
 
+  /**
+   * @return the offset of the first letter or digit in buf[0:length], or length if there is none
+   */
+  static int afflatusStart(char[] buf, int length) {
+    return afflatusStart(buf, 0, length);
+  }
+
+  /**
+   * @return the offset of the first letter or digit in buf[offset:offset+length], or
+   *         offset+length if there is none
+   */
+  public static int afflatusStart(char[] buf, int offset, int length) {
+    int i = offset;
+    int end = offset + length;
+    while (i < end && !Character.isLetterOrDigit(buf[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return the offset just past the last letter or digit in buf[start:end], or start if
+   *         there is none
+   */
+  public static int afflatusEnd(char[] buf, int start, int end) {
+    int j = end;
+    while (j > start && !Character.isLetterOrDigit(buf[j - 1])) {
+      j--;
+    }
+    return j;
+  }
+
+  /**
+   * The same as {@link #afflatusStart(char[], int, int)}, for UTF-8 encoded text. Characters
+   * outside the Basic Multilingual Plane are not letters or digits, as their surrogates are not.
+   *
+   * @return the offset in utf8.bytes of the first letter or digit in utf8, or
+   *         utf8.offset+utf8.length if there is none
+   */
+  public static int afflatusStart(BytesRef utf8) {
+    byte[] bytes = utf8.bytes;
+    int i = utf8.offset;
+    int end = utf8.offset + utf8.length;
+    while (i < end) {
+      int b = bytes[i] & 0xff;
+      int charLength = b < 0x80 ? 1 : b < 0xe0 ? 2 : b < 0xf0 ? 3 : 4;
+      if (charLength < 4 && Character.isLetterOrDigit(decodeUTF8(bytes, i, charLength))) {
+        break;
+      }
+      i += charLength;
+    }
+    return Math.min(i, end);
+  }
+
+  /**
+   * The same as {@link #afflatusEnd(char[], int, int)}, for UTF-8 encoded text.
+   *
+   * @param start the offset returned by {@link #afflatusStart(BytesRef)}
+   * @return the offset in utf8.bytes just past the last letter or digit in utf8, or start if
+   *         there is none
+   */
+  public static int afflatusEnd(BytesRef utf8, int start) {
+    byte[] bytes = utf8.bytes;
+    int j = utf8.offset + utf8.length;
+    while (j > start) {
+      // find the start of the last character
+      int i = j - 1;
+      while (i > start && (bytes[i] & 0xc0) == 0x80) {
+        i--;
+      }
+      int charLength = j - i;
+      if (charLength < 4 && Character.isLetterOrDigit(decodeUTF8(bytes, i, charLength))) {
+        break;
+      }
+      j = i;
+    }
+    return j;
+  }
+
+  private static char decodeUTF8(byte[] bytes, int i, int length) {
+    switch (length) {
+    case 1:
+      return (char) bytes[i];
+    case 2:
+      return (char) ((bytes[i] & 0x1f) << 6 | (bytes[i + 1] & 0x3f));
+    default:
+      return (char) ((bytes[i] & 0x0f) << 12 | (bytes[i + 1] & 0x3f) << 6 | (bytes[i + 2] & 0x3f));
+    }
+  }
+
   final static class WeightedDictionary {
     final long minWeight;
     final long maxWeight;
@@ -139,12 +233,12 @@ public class MultiDictionary implements Dictionary {
     private BytesRef stripAfflatus(BytesRef nextTerm) {
       // strip off non-letters and digits (incl. ideographics and all
       // surrogates)
-      String s0 = nextTerm.utf8ToString();
-      String s = MultiDictionary.stripAfflatus(s0);
-      if (s == s0) {
+      int start = afflatusStart(nextTerm);
+      int end = afflatusEnd(nextTerm, start);
+      if (start == nextTerm.offset && end == nextTerm.offset + nextTerm.length) {
         return nextTerm;
       }
-      scratch.copyChars(s);
+      scratch.copyBytes(nextTerm.bytes, start, end - start);
       return scratch.get();
     }
 
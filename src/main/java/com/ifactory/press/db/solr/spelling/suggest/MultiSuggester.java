@@ -5,14 +5,32 @@ import java.io.IOException;
 import java.text.BreakIterator;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.solr.spelling.Token;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.spell.HighFrequencyDictionary;
 import org.apache.lucene.search.spell.SuggestMode;
 import org.apache.lucene.search.suggest.Lookup;
@@ -22,17 +40,28 @@ import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.StringHelper;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrNamedThreadFactory;
 import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricProducer;
+import org.apache.solr.metrics.SolrMetricsContext;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.spelling.SpellingOptions;
 import org.apache.solr.spelling.SpellingResult;
 import org.apache.solr.spelling.suggest.Suggester;
+import org.apache.solr.util.RefCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.carrotsearch.hppc.ObjectIntHashMap;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimaps;
@@ -59,7 +88,8 @@ import com.google.common.collect.Multimaps;
  * be used as suggestions. This mode is selected by specifying
  * <b>analyzerFieldType</b>=string in the suggester configuration. In this mode, every
  * suggestion is given the field's constant <b>weight</b>: term frequency is not considered
- * as part of the weight, and no filtering is applied based on frequency.
+ * as part of the weight, and no filtering is applied based on frequency. Naming another field type
+ * instead analyzes the stored values using that type's analyzer.
  * </p>
  * 
  * <p>
@@ -69,6 +99,48 @@ import com.google.common.collect.Multimaps;
  * </p>
  * 
  * <p>
+ * If <b>suggestFromSegments</b> is set to true, suggestions for fields that use their own analyzer
+ * are not extracted by re-analyzing documents as they are added. Instead, when a new searcher is
+ * opened, the terms of any newly flushed segments are read from the index (see
+ * {@link #commitSegments(SolrIndexSearcher, SolrIndexSearcher)}), so the text is only analyzed once,
+ * by the IndexWriter. Terms are counted once per document rather than once per field value. The
+ * IndexWriter's merge policy is wrapped so that segments merged away before a searcher opens them
+ * are read as they are merged.
+ * </p>
+ * 
+ * <p>
+ * If <b>countReferences</b> is set to true, the suggester keeps a count of the documents referring
+ * to each suggestion, and MultiSuggesterProcessor reports deleted and replaced documents to it
+ * (see {@link #remove(SolrInputDocument)}). When a suggestion is no longer referred to by any
+ * document, it is hidden, so deletions take effect without a rebuild. The counts are kept in memory.
+ * Counts for fields drawing suggestions from their own indexed terms are seeded from the term's
+ * docFreq when first needed, unless the suggestion was stripped of punctuation, and so may stand for
+ * other terms. Counts for fields using their stored values (with an <b>analyzerFieldType</b>) are only
+ * known after the suggester has been built by this instance. Suggestions whose count is not known
+ * are never hidden. Removed documents' suggestions are extracted from their stored field values, so
+ * the fields must be stored.
+ * </p>
+ * 
+ * <p>
+ * If <b>maintenanceIdleMillis</b> is set, a background task runs {@link #maintain()} once no
+ * suggestions have been added or committed for that many milliseconds. It re-weights the
+ * suggestions drawn from the terms of each field using the current term and document frequencies,
+ * rewriting entries whose weight has drifted by more than <b>weightTolerance</b> (a fraction of the
+ * current weight, by default 0.05), then merges the suggestion index down to
+ * <b>maintenanceMaxSegments</b> segments (by default 1). This corrects the drift described in the
+ * note below without a full rebuild.
+ * </p>
+ * 
+ * <p>
+ * Metrics are registered with the core under <code>SPELLCHECKER.&lt;name&gt;</code>: timers for
+ * <code>build</code>, <code>commit</code>, <code>lookup</code> and <code>refresh</code>; counters of
+ * suggestions <code>added</code> by builds, <code>updated</code> and <code>hidden</code> by incremental
+ * updates and maintenance, and <code>duplicates</code> skipped; and gauges of the pending suggestions of
+ * each field (<code>pending.&lt;field&gt;</code>), and of the suggestion index's <code>sizeInBytes</code>
+ * and <code>segmentCount</code>.
+ * </p>
+ * 
+ * <p>
  * The following sample configuration illustrates a setup where suggestions are
  * drawn from a title field and a full text field, with different weights and
  * thresholds.
@@ -93,6 +165,8 @@ import com.google.common.collect.Multimaps;
  *       <float name="threshold">0.0</float>
  *       <!-- true == performance-killer. MultiSuggester handles incremental updates automatically, so there's no need for this anyway. -->
  *       <str name="buildOnCommit">false</str>
+ *       <!-- re-weight suggestions after a minute without updates -->
+ *       <int name="maintenanceIdleMillis">60000</int>
  *       <lst name="fields">
  *         <lst name="field">
  *           <str name="name">fulltext_t</str>
@@ -131,11 +205,12 @@ import com.google.common.collect.Multimaps;
  * NOTE: the incremental weighting scheme gives an artifical "advantage" to
  * infrequent terms that happen to be indexed first because their weights are
  * normalized when the number of documents is low. To avoid this, it's
- * recommended to rebuild the index periodically. If the index is large and
+ * recommended to rebuild the index periodically, or to enable idle-time
+ * maintenance (<b>maintenanceIdleMillis</b>). If the index is large and
  * growing relatively slowly, this effect will be very small, though.
  */
 @SuppressWarnings("rawtypes")
-public class MultiSuggester extends Suggester {
+public class MultiSuggester extends Suggester implements SolrMetricProducer {
 
   // weights are stored internally as longs, but externally as small
   // floating point numbers. The floating point weights are multiplied by
@@ -149,6 +224,59 @@ public class MultiSuggester extends Suggester {
 
   private int maxSuggestionLength;
 
+  private boolean suggestFromSegments;
+
+  private boolean countReferences;
+
+  private long maintenanceIdleNanos;
+
+  private float weightTolerance;
+
+  private int maintenanceMaxSegments;
+
+  private ScheduledExecutorService maintenanceExecutor;
+
+  // the time of the most recent update, used to detect idleness
+  private volatile long lastUpdateNanos = System.nanoTime();
+
+  // true when suggestions have been committed since maintenance last ran
+  private volatile boolean maintenanceDue;
+
+  private volatile boolean closed;
+
+  // the ids of the segments whose suggestions have been read, or carried by the merge that read
+  // them, or that were visible to a searcher the suggester has already accounted for
+  private final Set<String> claimedSegments = ConcurrentHashMap.newKeySet();
+
+  // merges whose merged segment hasn't been seen by a searcher yet, by merged segment id; guarded by itself
+  private final Map<String, PendingMerge> pendingMerges = new HashMap<String, PendingMerge>();
+
+  // suggestions carried by merges that failed, to be added at the next commit; guarded by pendingMerges
+  private final Map<WeightedField, HashMap<String, Integer>> abandonedBatches = new HashMap<WeightedField, HashMap<String, Integer>>();
+
+  private volatile SegmentTrackingMergePolicy mergeTracker;
+
+  // held while committing suggestions, and while maintenance re-weights a chunk of them, so
+  // maintenance can't write a weight that was read before a commit changed it
+  final Object updateLock = new Object();
+
+  // the number of suggestions re-weighted at a time during maintenance
+  private static final int MAINTENANCE_CHUNK_SIZE = 1024;
+
+  private static final float DEFAULT_WEIGHT_TOLERANCE = 0.05f;
+
+  private SolrMetricsContext solrMetricsContext;
+
+  // unregistered until initializeMetrics() is called
+  private Timer buildTimer = new Timer();
+  private Timer commitTimer = new Timer();
+  private Timer lookupTimer = new Timer();
+  private Timer refreshTimer = new Timer();
+  private Counter addedCount = new Counter();
+  private Counter updatedCount = new Counter();
+  private Counter hiddenCount = new Counter();
+  private Counter duplicateCount = new Counter();
+
   // use a synchronized Multimap - there may be one with the same name for each
   // core
   private static final ListMultimap<Object, Object> registry = Multimaps.synchronizedListMultimap(ArrayListMultimap.create());
@@ -187,14 +315,41 @@ public class MultiSuggester extends Suggester {
     // to independent suggestions for each token; we want AIS to perform
     // analysis and consider the tokens together
     analyzer = new KeywordAnalyzer();
+    suggestFromSegments = Boolean.TRUE.equals(config.getBooleanArg("suggestFromSegments"));
+    countReferences = Boolean.TRUE.equals(config.getBooleanArg("countReferences"));
     initWeights((NamedList) config.get("fields"), coreParam);
-    Integer maxLengthConfig = (Integer) config.get("maxSuggestionLength");
+    Integer maxLengthConfig = intArg(config, "maxSuggestionLength");
     maxSuggestionLength = maxLengthConfig != null ? maxLengthConfig : DEFAULT_MAX_SUGGESTION_LENGTH;
+    Object toleranceConfig = config.get("weightTolerance");
+    weightTolerance = toleranceConfig != null ? Float.parseFloat(toleranceConfig.toString()) : DEFAULT_WEIGHT_TOLERANCE;
+    Integer maxSegmentsConfig = intArg(config, "maintenanceMaxSegments");
+    maintenanceMaxSegments = maxSegmentsConfig != null ? maxSegmentsConfig : 1;
+    Integer idleConfig = intArg(config, "maintenanceIdleMillis");
+    if (idleConfig != null && idleConfig > 0) {
+      maintenanceIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleConfig);
+      maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(new SolrNamedThreadFactory("multiSuggesterMaintenance"));
+      maintenanceExecutor.scheduleWithFixedDelay(this::maintainIfIdle, idleConfig, idleConfig, TimeUnit.MILLISECONDS);
+    }
     registry.put(myname, this);
     core.addCloseHook(new CloseHandler());
+    if (core.getSolrMetricsContext() != null) {
+      initializeMetrics(core.getSolrMetricsContext(), myname);
+    }
     return myname;
   }
 
+  // accepts an <int> or a <str>
+  private static Integer intArg(NamedList config, String name) {
+    Object value = config.get(name);
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    return Integer.parseInt(value.toString());
+  }
+
   private void initWeights(NamedList fieldConfigs, SolrCore coreParam) {
     fields = new WeightedField[fieldConfigs.size()];
     for (int ifield = 0; ifield < fieldConfigs.size(); ifield++) {
@@ -232,17 +387,76 @@ public class MultiSuggester extends Suggester {
         fieldAnalyzer = coreParam.getLatestSchema().getFieldType(fieldName).getIndexAnalyzer();
       }
       fields[ifield] = new WeightedField(fieldName, weight, minFreq, maxFreq, fieldAnalyzer, useStoredField, filterDuplicates);
+      fields[ifield].fromSegments = suggestFromSegments && fieldAnalyzer != null && !useStoredField;
     }
     Arrays.sort(fields);
   }
 
+  @Override
+  public void initializeMetrics(SolrMetricsContext parentContext, String scope) {
+    solrMetricsContext = parentContext.getChildContext(this);
+    String category = SolrInfoBean.Category.SPELLCHECKER.toString();
+    buildTimer = solrMetricsContext.timer(null, "build", category, scope);
+    commitTimer = solrMetricsContext.timer(null, "commit", category, scope);
+    lookupTimer = solrMetricsContext.timer(null, "lookup", category, scope);
+    refreshTimer = solrMetricsContext.timer(null, "refresh", category, scope);
+    addedCount = solrMetricsContext.counter(null, "added", category, scope);
+    updatedCount = solrMetricsContext.counter(null, "updated", category, scope);
+    hiddenCount = solrMetricsContext.counter(null, "hidden", category, scope);
+    duplicateCount = solrMetricsContext.counter(null, "duplicates", category, scope);
+    for (WeightedField fld : fields) {
+      solrMetricsContext.gauge(null, (Gauge<Integer>) () -> fld.pending.size(), true, "pending." + fld.fieldName, category, scope);
+    }
+    solrMetricsContext.gauge(null, (Gauge<Long>) () -> {
+      try {
+        return lookup instanceof SafariInfixSuggester ? ((SafariInfixSuggester) lookup).getSizeInBytes() : 0L;
+      } catch (IOException e) {
+        return -1L;
+      }
+    }, true, "sizeInBytes", category, scope);
+    solrMetricsContext.gauge(null, (Gauge<Integer>) () -> {
+      try {
+        return lookup instanceof SafariInfixSuggester ? ((SafariInfixSuggester) lookup).getSegmentCount() : 0;
+      } catch (IOException e) {
+        return -1;
+      }
+    }, true, "segmentCount", category, scope);
+  }
+
+  @Override
+  public SolrMetricsContext getSolrMetricsContext() {
+    return solrMetricsContext;
+  }
+
   @Override
   public void build(SolrCore coreParam, SolrIndexSearcher searcher) throws IOException {
+    Timer.Context timing = buildTimer.time();
+    try {
+      buildSuggestions(searcher);
+    } finally {
+      timing.stop();
+    }
+  }
+
+  private void buildSuggestions(SolrIndexSearcher searcher) throws IOException {
     LOG.info("build suggestion index: " + name);
     reader = searcher.getIndexReader();
 
     SafariInfixSuggester ais = (SafariInfixSuggester) lookup;
     ais.clear();
+    if (countReferences) {
+      for (WeightedField fld : fields) {
+        synchronized (fld.references) {
+          fld.references.clear();
+          // stored values are counted as they are built
+          fld.referencesComplete = fld.useStoredField;
+        }
+        synchronized (fld.strippedSuggestions) {
+          fld.strippedSuggestions.clear();
+          fld.strippedSuggestionsComplete = false;
+        }
+      }
+    }
     
     // index all the terms-based fields using dictionaries
     for (WeightedField fld : fields) {
@@ -253,16 +467,15 @@ public class MultiSuggester extends Suggester {
         dictionary = new MultiDictionary();
         buildFromTerms(fld);
         ais.add(dictionary);
-        ais.refresh();
+        refresh(ais);
       }
     }
+    addedCount.inc(ais.getCount());
     LOG.info(String.format("%s suggestion index built: %d suggestions", name, ais.getCount()));
   }
 
   private void buildFromStoredField(WeightedField fld, SolrIndexSearcher searcher) throws IOException {
-    if (fld.fieldAnalyzer != null) {
-      throw new IllegalStateException("not supported: analyzing stored fields");
-    }
+    CharArraySet once = fld.fieldAnalyzer == null ? null : new CharArraySet(256, false);
     LOG.info(String.format("build suggestions from values for: %s (%d)", fld.fieldName, fld.weight));
     Set<String> fieldsToLoad = new HashSet<String>();
     fieldsToLoad.add(fld.fieldName);
@@ -272,7 +485,17 @@ public class MultiSuggester extends Suggester {
       Document doc = reader.document(idoc, fieldsToLoad);
       String value = doc.get(fld.fieldName);
       if (value != null) {
-        addRaw(fld, value);
+        fld.pendingLock.readLock().lock();
+        try {
+          if (once == null) {
+            addRaw(fld, value, fld.pending);
+          } else {
+            once.clear();
+            addTokenized(fld, value, once, fld.pending);
+          }
+        } finally {
+          fld.pendingLock.readLock().unlock();
+        }
       }
       if (idoc % 10000 == 9999) {
         commit(searcher);
@@ -292,6 +515,10 @@ public class MultiSuggester extends Suggester {
 
   @Override
   public void reload(SolrCore coreParam, SolrIndexSearcher searcher) throws IOException {
+    if (suggestFromSegments) {
+      trackMerges();
+      claimSegments(searcher);
+    }
     if (lookup instanceof AnalyzingInfixSuggester) {
       // AnalyzingInfixSuggester maintains its own index and sees updates, so we
       // don't need to
@@ -321,21 +548,82 @@ public class MultiSuggester extends Suggester {
    * @throws IOException
    */
   public void add(SolrInputDocument doc, SolrIndexSearcher searcher) throws IOException {
+    add(doc);
+  }
+
+  /**
+   * Adds the field values from the document to the suggester. This may be called concurrently
+   * from multiple threads.
+   * 
+   * @param doc
+   * @throws IOException
+   */
+  public void add(SolrInputDocument doc) throws IOException {
+    extractSuggestions(doc, false);
+  }
+
+  /**
+   * Records the removal of a document's field values, which were previously added to the
+   * suggester.  When the suggester commits, suggestions that are no longer referred to by any
+   * document are hidden.  This has no effect unless the suggester counts references.  This may be
+   * called concurrently from multiple threads.
+   * 
+   * @param doc the stored values of a document that is being deleted or replaced
+   * @throws IOException
+   */
+  public void remove(SolrInputDocument doc) throws IOException {
+    if (countReferences) {
+      extractSuggestions(doc, true);
+    }
+  }
+
+  /**
+   * @return whether this suggester keeps count of the documents referring to each suggestion
+   */
+  public boolean isCountingReferences() {
+    return countReferences;
+  }
+
+  private void extractSuggestions(SolrInputDocument doc, boolean removing) throws IOException {
     if (!(lookup instanceof SafariInfixSuggester)) {
       return;
     }
+    lastUpdateNanos = System.nanoTime();
+    CharArraySet once = null;
     for (WeightedField fld : fields) {
       if (!doc.containsKey(fld.fieldName)) {
         continue;
       }
-      fld.pendingDocCount++;
-      for (Object value : doc.getFieldValues(fld.fieldName)) {
-        String strValue = value.toString();
-        if (fld.fieldAnalyzer == null) {
-          addRaw(fld, strValue);
-        } else {
-          addTokenized(fld, strValue);
+      if (!removing && fld.fromSegments) {
+        // fromSegments fields' terms are read from the index by commitSegments()
+        continue;
+      }
+      if (removing && once != null) {
+        // removed tokens are counted once per document, like docFreq
+        once.clear();
+      }
+      // the document is added to the pending maps as a whole, before commit swaps them out
+      fld.pendingLock.readLock().lock();
+      try {
+        if (!removing) {
+          fld.pendingDocCount.incrementAndGet();
+        }
+        ConcurrentHashMap<String, Integer> target = removing ? fld.removed : fld.pending;
+        for (Object value : doc.getFieldValues(fld.fieldName)) {
+          String strValue = value.toString();
+          if (fld.fieldAnalyzer == null) {
+            addRaw(fld, strValue, target);
+          } else {
+            if (once == null) {
+              once = new CharArraySet(256, false);
+            } else if (!removing) {
+              once.clear();
+            }
+            addTokenized(fld, strValue, once, target);
+          }
         }
+      } finally {
+        fld.pendingLock.readLock().unlock();
       }
     }
   }
@@ -351,7 +639,7 @@ public class MultiSuggester extends Suggester {
    *          the value to add
    * @throws IOException
    */
-  private void addRaw(WeightedField fld, String value) throws IOException {
+  private void addRaw(WeightedField fld, String value, ConcurrentHashMap<String, Integer> target) throws IOException {
     if (value.length() > maxSuggestionLength) {
       // break the value into segments if it's too long
       BreakIterator scanner = BreakIterator.getWordInstance();
@@ -359,30 +647,44 @@ public class MultiSuggester extends Suggester {
       int offset = 0;
       while (offset < value.length() - maxSuggestionLength) {
         int next = scanner.following(offset + maxSuggestionLength - 1);
-        incPending(fld, value.substring(offset, next));
+        incPending(target, value.substring(offset, next));
         offset = next;
       }
       // just drop any trailing goo
     } else {
       // add the value unchanged
-      incPending(fld, value);
+      incPending(target, value);
     }
     // LOG.debug ("add raw " + value);
   }
 
-  private void addTokenized(WeightedField fld, String value) throws IOException {
+  /**
+   * Adds each distinct token of the value, stripped of leading and trailing punctuation.
+   * Tokens are stripped in place in the term buffer, and a String is only created the first
+   * time a token is seen.
+   * 
+   * @param once
+   *          the tokens already seen; the caller clears it between values (or documents) so it
+   *          may be shared by successive calls
+   */
+  private void addTokenized(WeightedField fld, String value, CharArraySet once, ConcurrentHashMap<String, Integer> target) throws IOException {
     TokenStream tokens = fld.fieldAnalyzer.tokenStream(fld.fieldName, value);
     tokens.reset();
     CharTermAttribute termAtt = tokens.addAttribute(CharTermAttribute.class);
-    Set<String> once = new HashSet<String>();
     try {
       while (tokens.incrementToken()) {
-        String token = termAtt.toString();
-        token = MultiDictionary.stripAfflatus(token);
-        if (once.add(token)) {
+        char[] buffer = termAtt.buffer();
+        int start = MultiDictionary.afflatusStart(buffer, termAtt.length());
+        int end = MultiDictionary.afflatusEnd(buffer, start, termAtt.length());
+        if (!once.contains(buffer, start, end - start)) {
           // only add each token once per field value to keep frequencies in line with
           // HighFrequencyDictionary, which counts using TermsEnum.docFreq()
-          incPending(fld, token);
+          String token = new String(buffer, start, end - start);
+          once.add(token);
+          incPending(target, token);
+          if (countReferences && (start > 0 || end < termAtt.length())) {
+            fld.strippedSuggestions.add(token);
+          }
           // LOG.debug("add token " + token);
         }
       }
@@ -392,41 +694,76 @@ public class MultiSuggester extends Suggester {
     }
   }
 
-  private void incPending(WeightedField fld, String suggestion) {
-    ConcurrentHashMap<String, Integer> pending = fld.pending;
-    if (pending.containsKey(suggestion)) {
-      pending.put(suggestion, pending.get(suggestion) + 1);
-    } else {
-      pending.put(suggestion, 1);
+  private static void incPending(ConcurrentHashMap<String, Integer> target, String suggestion) {
+    target.merge(suggestion, 1, Integer::sum);
+  }
+
+  /**
+   * @return the names of the fields that suggestions are drawn from
+   */
+  public List<String> getFieldNames() {
+    List<String> fieldNames = new ArrayList<String>(fields.length);
+    for (WeightedField fld : fields) {
+      fieldNames.add(fld.fieldName);
     }
+    return fieldNames;
   }
 
   public void commit(SolrIndexSearcher searcher) throws IOException {
     if (!(lookup instanceof SafariInfixSuggester)) {
       return;
     }
+    Timer.Context timing = commitTimer.time();
+    try {
+      synchronized (updateLock) {
+        commitPending(searcher);
+      }
+    } finally {
+      timing.stop();
+    }
+  }
+
+  private void commitPending(SolrIndexSearcher searcher) throws IOException {
     boolean updated = false;
     SafariInfixSuggester ais = (SafariInfixSuggester) lookup;
+    // suggestions whose reference count dropped to zero in some field
+    Set<String> unreferenced = new HashSet<String>();
+    if (countReferences) {
+      for (WeightedField fld : fields) {
+        removeReferences(fld, searcher.getIndexReader(), unreferenced);
+      }
+    }
+    // the counts that dropped below zero are clamped once the additions have been applied
+    Set<String> lowered = new HashSet<String>(unreferenced);
     for (WeightedField fld : fields) {
-      // get the number of documents having this field
-      long docCount = searcher.getIndexReader().getDocCount(fld.fieldName) + fld.pendingDocCount;
-      fld.pendingDocCount = 0;
       // swap in a new pending map so we can accept new suggestions while we
-      // commit
-      ConcurrentHashMap<String, Integer> batch = fld.pending;
-      fld.pending = new ConcurrentHashMap<String, Integer>(batch.size());
+      // commit, once documents being added to the current one are done
+      ConcurrentHashMap<String, Integer> batch;
+      int pendingDocCount;
+      fld.pendingLock.writeLock().lock();
+      try {
+        batch = fld.pending;
+        pendingDocCount = fld.pendingDocCount.getAndSet(0);
+        fld.pending = new ConcurrentHashMap<String, Integer>(batch.size());
+      } finally {
+        fld.pendingLock.writeLock().unlock();
+      }
+      // get the number of documents having this field
+      long docCount = searcher.getIndexReader().getDocCount(fld.fieldName) + pendingDocCount;
       BytesRef bytes = new BytesRef(maxSuggestionLength);
       BytesRefBuilder bytesRefBuilder = new BytesRefBuilder();  // From Lucene docs: BytesRef should not be used as a buffer, use BytesRefBuilder instead
       bytesRefBuilder.append(bytes);
       Term t = new Term(fld.fieldName, bytesRefBuilder);
-      long minCount = (long) (fld.minFreq * docCount);
-      long maxCount = (long) (docCount <= 1 ? Long.MAX_VALUE : (fld.maxFreq * docCount + 1));
       updated = updated || !batch.isEmpty();
       for (Map.Entry<String, Integer> e : batch.entrySet()) {
         String term = e.getKey();
+        if (countReferences && addReferences(fld, term, e.getValue())) {
+          unreferenced.remove(term);
+        }
         // check for duplicates
         if (fld.filterDuplicates && ais.lookup(term, 1, true, false).size() > 0) {
           // LOG.debug("skipping duplicate " + term);
+          duplicateCount.inc();
           continue;
         }
         // TODO: incorporate external metric (eg popularity) into weight
@@ -441,24 +778,574 @@ public class MultiSuggester extends Suggester {
           } else {
             count += e.getValue();
           }
-          if (count < minCount || count > maxCount) {
-            weight = 0;
-          } else {
-            weight = (fld.weight * count) / docCount;
-          }
+          weight = frequencyWeight(fld, count, docCount);
         }
         bytesRefBuilder.copyChars(term);
         bytes = bytesRefBuilder.get();
-        ais.update(bytes, weight);
+        updateSuggestion(ais, bytes, weight);
+      }
+    }
+    for (String suggestion : lowered) {
+      clampReferences(suggestion);
+    }
+    for (String suggestion : unreferenced) {
+      if (!isReferenced(suggestion, searcher.getIndexReader())) {
+        // a zero weight hides the suggestion
+        updateSuggestion(ais, new BytesRef(suggestion), 0);
+        updated = true;
       }
     }
     // refresh after each field so the counts will accumulate across fields?
     if (updated) {
+      refresh(ais);
+      lastUpdateNanos = System.nanoTime();
+      maintenanceDue = true;
+    }
+  }
+
+  /**
+   * Applies the field's pending removals to its reference counts, collecting the suggestions
+   * whose count drops to zero.  The count may drop below zero, when a document added since the last
+   * commit has been removed again: the pending additions, applied next, make up the difference.
+   */
+  private void removeReferences(WeightedField fld, IndexReader reader, Set<String> unreferenced) throws IOException {
+    ConcurrentHashMap<String, Integer> batch;
+    fld.pendingLock.writeLock().lock();
+    try {
+      batch = fld.removed;
+      if (batch.isEmpty()) {
+        return;
+      }
+      fld.removed = new ConcurrentHashMap<String, Integer>();
+    } finally {
+      fld.pendingLock.writeLock().unlock();
+    }
+    synchronized (fld.references) {
+      for (Map.Entry<String, Integer> e : batch.entrySet()) {
+        String suggestion = e.getKey();
+        int count;
+        if (fld.references.containsKey(suggestion)) {
+          count = fld.references.get(suggestion);
+        } else if (fld.docFreqCounts && !isStripped(fld, suggestion, reader)) {
+          // the reader has not yet seen the removal
+          count = reader.docFreq(new Term(fld.fieldName, suggestion));
+        } else if (fld.useStoredField && fld.referencesComplete) {
+          count = 0;
+        } else {
+          // unknown
+          continue;
+        }
+        count -= e.getValue();
+        // zero counts are kept so they will not be re-seeded from docFreq, which includes deleted documents
+        fld.references.put(suggestion, count);
+        if (count <= 0) {
+          unreferenced.add(suggestion);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return whether the field may refer to the suggestion: its count is unknown, or positive
+   */
+  private static boolean addReferences(WeightedField fld, String suggestion, int count) {
+    synchronized (fld.references) {
+      if (fld.references.containsKey(suggestion)) {
+        return fld.references.addTo(suggestion, count) > 0;
+      } else if (fld.useStoredField && fld.referencesComplete) {
+        fld.references.put(suggestion, count);
+        return count > 0;
+      }
+      // otherwise the count is unknown: it may be seeded from docFreq
+      return true;
+    }
+  }
+
+  // removals that were not made up by additions leave no negative counts
+  private void clampReferences(String suggestion) {
+    for (WeightedField fld : fields) {
+      synchronized (fld.references) {
+        if (fld.references.containsKey(suggestion) && fld.references.get(suggestion) < 0) {
+          fld.references.put(suggestion, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return whether any field may still refer to the suggestion. Unknown counts are assumed to be
+   *         non-zero.
+   */
+  private boolean isReferenced(String suggestion, IndexReader reader) throws IOException {
+    for (WeightedField fld : fields) {
+      synchronized (fld.references) {
+        if (fld.references.containsKey(suggestion)) {
+          if (fld.references.get(suggestion) > 0) {
+            return true;
+          }
+          continue;
+        }
+      }
+      if (fld.docFreqCounts && !isStripped(fld, suggestion, reader)) {
+        if (reader.docFreq(new Term(fld.fieldName, suggestion)) > 0) {
+          return true;
+        }
+      } else if (!(fld.useStoredField && fld.referencesComplete)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the suggestion was stripped of punctuation from some term of the field, in which
+   *         case the suggestion's docFreq does not count the documents referring to it.  The field's
+   *         terms are read the first time this is needed; afterwards newly added suggestions are
+   *         recorded as they are extracted.
+   */
+  private static boolean isStripped(WeightedField fld, String suggestion, IndexReader reader) throws IOException {
+    synchronized (fld.strippedSuggestions) {
+      if (!fld.strippedSuggestionsComplete) {
+        Terms terms = MultiTerms.getTerms(reader, fld.fieldName);
+        if (terms != null) {
+          TermsEnum termsEnum = terms.iterator();
+          BytesRef term;
+          while ((term = termsEnum.next()) != null) {
+            int start = MultiDictionary.afflatusStart(term);
+            int end = MultiDictionary.afflatusEnd(term, start);
+            if (start > term.offset || end < term.offset + term.length) {
+              fld.strippedSuggestions.add(new BytesRef(term.bytes, start, end - start).utf8ToString());
+            }
+          }
+        }
+        fld.strippedSuggestionsComplete = true;
+      }
+    }
+    return fld.strippedSuggestions.contains(suggestion);
+  }
+
+  private void updateSuggestion(SafariInfixSuggester ais, BytesRef suggestion, long weight) throws IOException {
+    ais.update(suggestion, weight);
+    if (weight > 0) {
+      updatedCount.inc();
+    } else {
+      hiddenCount.inc();
+    }
+  }
+
+  private void refresh(SafariInfixSuggester ais) throws IOException {
+    Timer.Context timing = refreshTimer.time();
+    try {
       ais.refresh();
+    } finally {
+      timing.stop();
+    }
+  }
+
+  private static long frequencyWeight(WeightedField fld, long count, long docCount) {
+    long minCount = (long) (fld.minFreq * docCount);
+    long maxCount = (long) (docCount <= 1 ? Long.MAX_VALUE : (fld.maxFreq * docCount + 1));
+    if (count < minCount || count > maxCount) {
+      return 0;
+    }
+    return (fld.weight * count) / docCount;
+  }
+
+  /**
+   * Adds suggestions drawn from the terms of the segments that are visible to newSearcher, but
+   * haven't been read yet, for fields that are configured to take suggestions from segments.
+   * Segments are identified by their unique id.  A segment that is merged away before any
+   * searcher has seen it is read by the merge (see {@link SegmentTrackingMergePolicy}), and its
+   * suggestions are carried forward until the merged segment becomes visible; a merged segment
+   * that was not produced by a tracked merge is read in full.  The suggestions are weighted using
+   * the term frequencies in newSearcher.
+   * 
+   * @param newSearcher the searcher that is being opened
+   * @param currentSearcher the searcher it replaces, or null
+   * @throws IOException
+   */
+  public void commitSegments(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) throws IOException {
+    if (!suggestFromSegments || !(lookup instanceof SafariInfixSuggester)) {
+      return;
+    }
+    trackMerges();
+    if (currentSearcher == null) {
+      // the first searcher: its segments have already been built into the suggester
+      claimSegments(newSearcher);
+      return;
+    }
+    // the current searcher's segments were read when it was opened, or built
+    claimSegments(currentSearcher);
+    Set<String> visible = new HashSet<String>();
+    Map<WeightedField, HashMap<String, Integer>> batches = new HashMap<WeightedField, HashMap<String, Integer>>();
+    for (LeafReaderContext leaf : newSearcher.getIndexReader().leaves()) {
+      SegmentReader segmentReader = getSegmentReader(leaf);
+      if (segmentReader == null) {
+        continue;
+      }
+      String id = segmentId(segmentReader.getSegmentInfo().info);
+      visible.add(id);
+      if (claimedSegments.add(id)) {
+        readSegment(leaf.reader(), batches);
+      }
+    }
+    synchronized (pendingMerges) {
+      Set<String> keep = new HashSet<String>(visible);
+      Iterator<Map.Entry<String, PendingMerge>> it = pendingMerges.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, PendingMerge> e = it.next();
+        if (visible.contains(e.getKey())) {
+          addBatches(e.getValue().batches, batches);
+          it.remove();
+        } else {
+          keep.add(e.getKey());
+          keep.addAll(e.getValue().sources);
+        }
+      }
+      addBatches(abandonedBatches, batches);
+      abandonedBatches.clear();
+      // forget segments that have been merged away
+      claimedSegments.retainAll(keep);
+    }
+    if (batches.isEmpty()) {
+      return;
+    }
+    synchronized (updateLock) {
+      SafariInfixSuggester ais = (SafariInfixSuggester) lookup;
+      IndexReader reader = newSearcher.getIndexReader();
+      BytesRefBuilder bytesRefBuilder = new BytesRefBuilder();
+      for (Map.Entry<WeightedField, HashMap<String, Integer>> batch : batches.entrySet()) {
+        WeightedField fld = batch.getKey();
+        long docCount = reader.getDocCount(fld.fieldName);
+        for (Map.Entry<String, Integer> e : batch.getValue().entrySet()) {
+          String suggestion = e.getKey();
+          if (countReferences) {
+            addReferences(fld, suggestion, e.getValue());
+          }
+          if (fld.filterDuplicates && ais.lookup(suggestion, 1, true, false).size() > 0) {
+            duplicateCount.inc();
+            continue;
+          }
+          // the new segments are already counted in the searcher's docFreq, unless stripping
+          // altered the term
+          long count = Math.max(reader.docFreq(new Term(fld.fieldName, suggestion)), e.getValue());
+          bytesRefBuilder.copyChars(suggestion);
+          updateSuggestion(ais, bytesRefBuilder.get(), frequencyWeight(fld, count, docCount));
+        }
+      }
+      refresh(ais);
+      lastUpdateNanos = System.nanoTime();
+      maintenanceDue = true;
+    }
+  }
+
+  private void maintainIfIdle() {
+    if (closed || !maintenanceDue || System.nanoTime() - lastUpdateNanos < maintenanceIdleNanos) {
+      return;
+    }
+    try {
+      maintain();
+    } catch (Exception e) {
+      // don't let the exception cancel the scheduled task
+      LOG.error("An exception occurred during suggester maintenance", e);
+    }
+  }
+
+  /**
+   * Re-weights the suggestions drawn from the terms of fields that use their own analyzer, using
+   * the term and document frequencies of the core's current searcher, and then compacts the
+   * suggestion index. Terms are read in sorted order and processed in chunks, and only suggestions
+   * whose weight has drifted by more than the configured tolerance are rewritten; hidden (zero
+   * weight) suggestions are left alone.  A suggestion drawn from several fields is given the
+   * greatest of their weights, including the weights of fields using their stored values, so that
+   * re-weighting never lowers a suggestion below the weight a stored value gave it.  Maintenance stops early if suggestions are updated meanwhile; commits
+   * wait for the chunk being re-weighted.
+   * 
+   * @return the number of suggestions whose weight was rewritten
+   * @throws IOException
+   */
+  public int maintain() throws IOException {
+    if (!(lookup instanceof SafariInfixSuggester)) {
+      return 0;
+    }
+    SafariInfixSuggester ais = (SafariInfixSuggester) lookup;
+    long started = lastUpdateNanos;
+    maintenanceDue = false;
+    List<WeightedField> termFields = new ArrayList<WeightedField>();
+    List<WeightedField> storedFields = new ArrayList<WeightedField>();
+    for (WeightedField fld : fields) {
+      if (fld.useStoredField) {
+        storedFields.add(fld);
+      } else if (fld.fieldAnalyzer != null) {
+        termFields.add(fld);
+      }
+    }
+    int rewritten = 0;
+    RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+    try {
+      IndexReader reader = searcher.get().getIndexReader();
+      List<String> chunk = new ArrayList<String>(MAINTENANCE_CHUNK_SIZE);
+      fields:
+      for (int ifield = 0; ifield < termFields.size(); ifield++) {
+        Terms terms = MultiTerms.getTerms(reader, termFields.get(ifield).fieldName);
+        if (terms == null) {
+          continue;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        BytesRef term;
+        for (;;) {
+          term = termsEnum.next();
+          if (term != null) {
+            // stripped terms are weighted when their stripped form is reached, if it is indexed
+            int start = MultiDictionary.afflatusStart(term);
+            if (start == term.offset && MultiDictionary.afflatusEnd(term, start) == term.offset + term.length) {
+              String suggestion = term.utf8ToString();
+              if (!isEarlierTerm(termFields, ifield, suggestion, reader)) {
+                chunk.add(suggestion);
+              }
+            }
+          }
+          if (chunk.size() == MAINTENANCE_CHUNK_SIZE || (term == null && !chunk.isEmpty())) {
+            synchronized (updateLock) {
+              // the weights are read and rewritten without a commit in between
+              if (closed || lastUpdateNanos != started) {
+                LOG.info("suggester maintenance interrupted by updates");
+                maintenanceDue = true;
+                break fields;
+              }
+              rewritten += reweight(ais, termFields, storedFields, chunk, reader);
+            }
+            chunk.clear();
+          }
+          if (term == null) {
+            break;
+          }
+        }
+      }
+    } finally {
+      searcher.decref();
+    }
+    if (rewritten > 0) {
+      refresh(ais);
+    }
+    if (!closed) {
+      ais.compact(maintenanceMaxSegments);
+    }
+    LOG.info(String.format("%s suggester maintenance re-weighted %d suggestions", name, rewritten));
+    return rewritten;
+  }
+
+  // true if the suggestion also occurs in a field that precedes termFields[ifield], so it has already
+  // been re-weighted
+  private static boolean isEarlierTerm(List<WeightedField> termFields, int ifield, String suggestion, IndexReader reader) throws IOException {
+    for (int i = 0; i < ifield; i++) {
+      if (reader.docFreq(new Term(termFields.get(i).fieldName, suggestion)) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int reweight(SafariInfixSuggester ais, List<WeightedField> termFields, List<WeightedField> storedFields,
+      List<String> chunk, IndexReader reader) throws IOException {
+    long[] currentWeights = ais.getWeights(chunk);
+    int rewritten = 0;
+    BytesRefBuilder bytesRefBuilder = new BytesRefBuilder();
+    for (int i = 0; i < currentWeights.length; i++) {
+      long currentWeight = currentWeights[i];
+      if (currentWeight <= 0) {
+        // absent, below threshold, or hidden
+        continue;
+      }
+      String suggestion = chunk.get(i);
+      long weight = 0;
+      for (WeightedField fld : termFields) {
+        int count = reader.docFreq(new Term(fld.fieldName, suggestion));
+        if (count > 0) {
+          weight = Math.max(weight, frequencyWeight(fld, count, reader.getDocCount(fld.fieldName)));
+        }
+      }
+      for (WeightedField fld : storedFields) {
+        weight = Math.max(weight, storedWeight(fld, suggestion, currentWeight, reader));
+      }
+      if (Math.abs(weight - currentWeight) > weightTolerance * currentWeight) {
+        bytesRefBuilder.copyChars(suggestion);
+        updateSuggestion(ais, bytesRefBuilder.get(), weight);
+        ++rewritten;
+      }
+    }
+    return rewritten;
+  }
+
+  /**
+   * The weight a field using its stored values gives the suggestion, as it was weighted when added,
+   * or 0 if the field doesn't contribute it.  A whole stored value may not be indexed as a term, but
+   * has the field's constant weight; if that is the suggestion's current weight, it is kept.
+   */
+  private static long storedWeight(WeightedField fld, String suggestion, long currentWeight, IndexReader reader) throws IOException {
+    int count = reader.docFreq(new Term(fld.fieldName, suggestion));
+    if (fld.fieldAnalyzer == null) {
+      return count > 0 || currentWeight == fld.weight ? fld.weight : 0;
+    }
+    return count > 0 ? frequencyWeight(fld, count, reader.getDocCount(fld.fieldName)) : 0;
+  }
+
+  private void readSegment(LeafReader segmentReader, Map<WeightedField, HashMap<String, Integer>> batches) throws IOException {
+    for (WeightedField fld : fields) {
+      if (!fld.fromSegments) {
+        continue;
+      }
+      Terms terms = segmentReader.terms(fld.fieldName);
+      if (terms == null) {
+        continue;
+      }
+      HashMap<String, Integer> batch = batches.get(fld);
+      if (batch == null) {
+        batch = new HashMap<String, Integer>();
+        batches.put(fld, batch);
+      }
+      TermsEnum termsEnum = terms.iterator();
+      BytesRef term;
+      BytesRef stripped = new BytesRef();
+      while ((term = termsEnum.next()) != null) {
+        // decode only the stripped part of the term
+        int start = MultiDictionary.afflatusStart(term);
+        stripped.bytes = term.bytes;
+        stripped.offset = start;
+        stripped.length = MultiDictionary.afflatusEnd(term, start) - start;
+        String suggestion = stripped.utf8ToString();
+        batch.merge(suggestion, termsEnum.docFreq(), Integer::sum);
+        if (countReferences && stripped.length < term.length) {
+          fld.strippedSuggestions.add(suggestion);
+        }
+      }
+    }
+  }
+
+  private static void addBatches(Map<WeightedField, HashMap<String, Integer>> from, Map<WeightedField, HashMap<String, Integer>> to) {
+    for (Map.Entry<WeightedField, HashMap<String, Integer>> e : from.entrySet()) {
+      HashMap<String, Integer> batch = to.get(e.getKey());
+      if (batch == null) {
+        to.put(e.getKey(), new HashMap<String, Integer>(e.getValue()));
+      } else {
+        for (Map.Entry<String, Integer> count : e.getValue().entrySet()) {
+          batch.merge(count.getKey(), count.getValue(), Integer::sum);
+        }
+      }
+    }
+  }
+
+  private void trackMerges() throws IOException {
+    RefCounted<IndexWriter> iw = core.getSolrCoreState().getIndexWriter(core);
+    try {
+      mergeTracker = SegmentTrackingMergePolicy.register(iw.get(), this);
+    } finally {
+      iw.decref();
+    }
+  }
+
+  private void claimSegments(SolrIndexSearcher searcher) {
+    for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+      SegmentReader segmentReader = getSegmentReader(leaf);
+      if (segmentReader != null) {
+        claimedSegments.add(segmentId(segmentReader.getSegmentInfo().info));
+      }
+    }
+  }
+
+  private static String segmentId(SegmentInfo info) {
+    return StringHelper.idToString(info.getId());
+  }
+
+  /**
+   * Called by a tracked merge before it reads its first source segment.
+   */
+  void mergeStarted(SegmentCommitInfo merged, List<SegmentCommitInfo> sources) {
+    List<String> sourceIds = new ArrayList<String>();
+    for (SegmentCommitInfo source : sources) {
+      sourceIds.add(segmentId(source.info));
+    }
+    synchronized (pendingMerges) {
+      pendingMerges.put(segmentId(merged.info), new PendingMerge(sourceIds));
     }
   }
 
+  /**
+   * Called by a tracked merge as it reads each source segment.  A segment that hasn't been read
+   * already is read now, and its suggestions are carried by the merge; a source that is itself the
+   * unseen product of a merge hands on the suggestions carried to it.
+   */
+  void carrySegment(SegmentCommitInfo merged, SegmentReader source) throws IOException {
+    if (closed) {
+      return;
+    }
+    String id = segmentId(source.getSegmentInfo().info);
+    boolean claimed;
+    synchronized (pendingMerges) {
+      PendingMerge merge = pendingMerges.get(segmentId(merged.info));
+      claimed = merge != null && claimedSegments.add(id);
+      if (merge != null && !claimed) {
+        PendingMerge carried = pendingMerges.remove(id);
+        if (carried != null) {
+          addBatches(carried.batches, merge.batches);
+        }
+      }
+    }
+    if (!claimed) {
+      return;
+    }
+    Map<WeightedField, HashMap<String, Integer>> batches = new HashMap<WeightedField, HashMap<String, Integer>>();
+    readSegment(source, batches);
+    synchronized (pendingMerges) {
+      PendingMerge merge = pendingMerges.get(segmentId(merged.info));
+      addBatches(batches, merge != null ? merge.batches : abandonedBatches);
+    }
+  }
+
+  /**
+   * Called by a tracked merge once it has read all of its sources.
+   */
+  void mergeCarried(SegmentCommitInfo merged) {
+    synchronized (pendingMerges) {
+      claimedSegments.add(segmentId(merged.info));
+    }
+  }
+
+  /**
+   * Called by a tracked merge that failed, or whose merged segment was dropped because all of its
+   * documents were deleted.  The sources of a failed merge remain in the index, but have been
+   * claimed, so their suggestions are added at the next commit.
+   */
+  void mergeAbandoned(SegmentCommitInfo merged, boolean success) {
+    if (merged == null) {
+      return;
+    }
+    synchronized (pendingMerges) {
+      PendingMerge merge = pendingMerges.remove(segmentId(merged.info));
+      if (merge != null && !success) {
+        addBatches(merge.batches, abandonedBatches);
+      }
+    }
+  }
+
+  private static SegmentReader getSegmentReader(LeafReaderContext leaf) {
+    LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+    return reader instanceof SegmentReader ? (SegmentReader) reader : null;
+  }
+
+  @Override
   public void close() throws IOException {
+    closed = true;
+    if (mergeTracker != null) {
+      mergeTracker.unregister(this);
+    }
+    if (solrMetricsContext != null) {
+      solrMetricsContext.unregister();
+    }
+    if (maintenanceExecutor != null) {
+      ExecutorUtil.shutdownAndAwaitTermination(maintenanceExecutor);
+      maintenanceExecutor = null;
+    }
     if (lookup != null && lookup instanceof Closeable) {
       ((Closeable) lookup).close();
       lookup = null;
@@ -476,9 +1363,27 @@ public class MultiSuggester extends Suggester {
     final float maxFreq;
     final Analyzer fieldAnalyzer;
     final boolean useStoredField;
-    private ConcurrentHashMap<String, Integer> pending;
-    private int pendingDocCount;
+    // documents are extracted into pending, pendingDocCount and removed while holding the read lock;
+    // commit swaps them out while holding the write lock
+    private final ReadWriteLock pendingLock;
+    private volatile ConcurrentHashMap<String, Integer> pending;
+    private final AtomicInteger pendingDocCount;
+    // suggestions extracted from removed documents, when counting references
+    private volatile ConcurrentHashMap<String, Integer> removed;
+    // the number of documents referring to each suggestion; guarded by itself
+    final ObjectIntHashMap<String> references;
+    // true when references counts every suggestion drawn from this field
+    boolean referencesComplete;
+    // true when the docFreq of a suggestion's term counts the documents referring to it, unless
+    // the suggestion is one of strippedSuggestions
+    final boolean docFreqCounts;
+    // suggestions that were stripped of punctuation from some other term of this field; guarded by itself
+    final Set<String> strippedSuggestions;
+    // true when strippedSuggestions has been filled from the field's terms
+    boolean strippedSuggestionsComplete;
     final boolean filterDuplicates;
+    // suggestions are read from the terms of newly flushed segments
+    boolean fromSegments;
 
     WeightedField(String name, float weight, float minFreq, float maxFreq, Analyzer analyzer, boolean useStoredField, Boolean filterDuplicates) {
       this.fieldName = name;
@@ -488,8 +1393,13 @@ public class MultiSuggester extends Suggester {
       this.fieldAnalyzer = analyzer;
       this.useStoredField = useStoredField;
       this.filterDuplicates = filterDuplicates;
+      pendingLock = new ReentrantReadWriteLock();
       pending = new ConcurrentHashMap<String, Integer>();
-      pendingDocCount = 0;
+      pendingDocCount = new AtomicInteger();
+      removed = new ConcurrentHashMap<String, Integer>();
+      references = new ObjectIntHashMap<String>();
+      docFreqCounts = analyzer != null && !useStoredField;
+      strippedSuggestions = ConcurrentHashMap.newKeySet();
     }
 
     @Override
@@ -505,6 +1415,16 @@ public class MultiSuggester extends Suggester {
 
   }
 
+  private static class PendingMerge {
+    final List<String> sources;
+    // suggestions read from sources that no searcher has seen
+    final Map<WeightedField, HashMap<String, Integer>> batches = new HashMap<WeightedField, HashMap<String, Integer>>();
+
+    PendingMerge(List<String> sources) {
+      this.sources = sources;
+    }
+  }
+
   class CloseHandler extends CloseHook {
 
     @Override
@@ -566,7 +1486,13 @@ public class MultiSuggester extends Suggester {
 
   @Override
   public SpellingResult getSuggestions(SpellingOptions options) throws IOException {
-    SpellingResult result = getSuggestionsWithHighlights(options);
+    SpellingResult result;
+    Timer.Context timing = lookupTimer.time();
+    try {
+      result = getSuggestionsWithHighlights(options);
+    } finally {
+      timing.stop();
+    }
     if (options.extendedResults) {
       for (Map.Entry<?, LinkedHashMap<String, Integer>> suggestion : result.getSuggestions().entrySet()) {
         Object token = suggestion.getKey();
@@ -5,13 +5,26 @@ import java.util.*;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.spell.Dictionary;
 import org.apache.lucene.search.suggest.InputIterator;
 import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +35,9 @@ public class SafariInfixSuggester extends AnalyzingInfixSuggester {
   private Set<BytesRef> excludedContextBytes;
   private static final Logger LOG = LoggerFactory.getLogger(SafariInfixSuggester.class);
 
+  // the name of AnalyzingInfixSuggester's weight field, for which it defines no constant
+  private static final String WEIGHT_FIELD_NAME = "weight";
+
   public enum Context {
     SHOW, HIDE
   };
@@ -67,6 +83,130 @@ public class SafariInfixSuggester extends AnalyzingInfixSuggester {
     super.update(bytes, weight <= 0 ? hideContext : showContext, weight, null);
   }
 
+  /**
+   * Reads the current weights of the given suggestions.
+   *
+   * @param texts the suggestions, preferably in sorted order
+   * @return the weight of each suggestion, or -1 for suggestions that are not in the index
+   * @throws IOException
+   */
+  public long[] getWeights(List<String> texts) throws IOException {
+    long[] weights = new long[texts.size()];
+    Arrays.fill(weights, -1);
+    SearcherManager mgr;
+    IndexSearcher searcher;
+    synchronized (searcherMgrLock) {
+      mgr = searcherMgr;
+      if (mgr == null) {
+        return weights;
+      }
+      searcher = mgr.acquire();
+    }
+    try {
+      BytesRefBuilder bytes = new BytesRefBuilder();
+      for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+        LeafReader reader = leaf.reader();
+        Terms terms = reader.terms(EXACT_TEXT_FIELD_NAME);
+        if (terms == null) {
+          continue;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        Bits liveDocs = reader.getLiveDocs();
+        PostingsEnum postings = null;
+        for (int i = 0; i < weights.length; i++) {
+          bytes.copyChars(texts.get(i));
+          if (!termsEnum.seekExact(bytes.get())) {
+            continue;
+          }
+          postings = termsEnum.postings(postings, PostingsEnum.NONE);
+          for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+              continue;
+            }
+            // doc values iterate forwards only, and these docs are not in order
+            NumericDocValues weightValues = reader.getNumericDocValues(WEIGHT_FIELD_NAME);
+            if (weightValues != null && weightValues.advanceExact(doc)) {
+              weights[i] = Math.max(weights[i], weightValues.longValue());
+            }
+          }
+        }
+      }
+    } finally {
+      mgr.release(searcher);
+    }
+    return weights;
+  }
+
+  /**
+   * @return the number of segments in the suggestion index, as currently visible to lookups
+   * @throws IOException
+   */
+  public int getSegmentCount() throws IOException {
+    SearcherManager mgr;
+    IndexSearcher searcher;
+    synchronized (searcherMgrLock) {
+      mgr = searcherMgr;
+      if (mgr == null) {
+        return 0;
+      }
+      searcher = mgr.acquire();
+    }
+    try {
+      return searcher.getIndexReader().leaves().size();
+    } finally {
+      mgr.release(searcher);
+    }
+  }
+
+  /**
+   * @return the size of the suggestion index's segments, as currently visible to lookups
+   * @throws IOException
+   */
+  public long getSizeInBytes() throws IOException {
+    SearcherManager mgr;
+    IndexSearcher searcher;
+    synchronized (searcherMgrLock) {
+      mgr = searcherMgr;
+      if (mgr == null) {
+        return 0;
+      }
+      searcher = mgr.acquire();
+    }
+    try {
+      long size = 0;
+      for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+        LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+        if (reader instanceof SegmentReader) {
+          size += ((SegmentReader) reader).getSegmentInfo().sizeInBytes();
+        }
+      }
+      return size;
+    } finally {
+      mgr.release(searcher);
+    }
+  }
+
+  /**
+   * Merges the suggestion index down to maxSegments segments, if it has been written to and has
+   * more segments than that.
+   *
+   * @return whether the index was merged
+   * @throws IOException
+   */
+  public boolean compact(int maxSegments) throws IOException {
+    if (writer == null) {
+      return false;
+    }
+    int segmentCount = getSegmentCount();
+    if (segmentCount <= maxSegments) {
+      return false;
+    }
+    LOG.info(String.format("merging %d suggestion index segments into %d", segmentCount, maxSegments));
+    writer.forceMerge(maxSegments);
+    refresh();
+    return true;
+  }
+
   @Override
   public void build(InputIterator iter) throws IOException {
     // Reset suggestion HashSet on build
@@ -0,0 +1,146 @@
+package com.ifactory.press.db.solr.spelling.suggest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.FilterCodecReader;
+import org.apache.lucene.index.FilterMergePolicy;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SegmentReader;
+
+/**
+ * Wraps an IndexWriter's merge policy so that the MultiSuggesters reading suggestions from
+ * segments see the segments that are merged away before any searcher has opened them: segments
+ * flushed by a commit that didn't open a searcher, or by an autocommit, may be merged before the
+ * next searcher is opened, and then exist only inside the merged segment.  Each source segment is
+ * handed to the suggesters as the merge reads it (see {@link MultiSuggester#carrySegment}), and
+ * once all of them have been, the merged segment is accounted for.
+ *
+ * Only merges of the plain {@link MergePolicy.OneMerge} class are tracked; the suggesters read
+ * the whole of any merged segment they can't account for.
+ */
+class SegmentTrackingMergePolicy extends FilterMergePolicy {
+
+  private final List<MultiSuggester> suggesters = new CopyOnWriteArrayList<MultiSuggester>();
+
+  private SegmentTrackingMergePolicy(MergePolicy in) {
+    super(in);
+  }
+
+  /**
+   * Wraps the writer's merge policy, unless it has been wrapped already, and reports its merges to
+   * the suggester.
+   * @return the wrapping merge policy
+   */
+  static synchronized SegmentTrackingMergePolicy register(IndexWriter writer, MultiSuggester suggester) {
+    LiveIndexWriterConfig config = writer.getConfig();
+    MergePolicy mergePolicy = config.getMergePolicy();
+    SegmentTrackingMergePolicy tracking;
+    if (mergePolicy instanceof SegmentTrackingMergePolicy) {
+      tracking = (SegmentTrackingMergePolicy) mergePolicy;
+    } else {
+      tracking = new SegmentTrackingMergePolicy(mergePolicy);
+      config.setMergePolicy(tracking);
+    }
+    if (!tracking.suggesters.contains(suggester)) {
+      tracking.suggesters.add(suggester);
+    }
+    return tracking;
+  }
+
+  void unregister(MultiSuggester suggester) {
+    suggesters.remove(suggester);
+  }
+
+  @Override
+  public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
+    return track(super.findMerges(mergeTrigger, segmentInfos, mergeContext));
+  }
+
+  @Override
+  public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount, Map<SegmentCommitInfo, Boolean> segmentsToMerge,
+      MergeContext mergeContext) throws IOException {
+    return track(super.findForcedMerges(segmentInfos, maxSegmentCount, segmentsToMerge, mergeContext));
+  }
+
+  @Override
+  public MergeSpecification findForcedDeletesMerges(SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
+    return track(super.findForcedDeletesMerges(segmentInfos, mergeContext));
+  }
+
+  @Override
+  public MergeSpecification findFullFlushMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos, MergeContext mergeContext) throws IOException {
+    return track(super.findFullFlushMerges(mergeTrigger, segmentInfos, mergeContext));
+  }
+
+  private MergeSpecification track(MergeSpecification spec) {
+    if (spec == null || suggesters.isEmpty()) {
+      return spec;
+    }
+    MergeSpecification tracked = new MergeSpecification();
+    for (OneMerge merge : spec.merges) {
+      // a subclass may carry state of its own, which would be lost by replacing it
+      tracked.add(merge.getClass() == OneMerge.class ? new TrackingMerge(merge.segments, suggesters) : merge);
+    }
+    return tracked;
+  }
+
+  static class TrackingMerge extends OneMerge {
+
+    private final List<MultiSuggester> suggesters;
+    private int sourcesRead;
+    private boolean untracked;
+
+    TrackingMerge(List<SegmentCommitInfo> segments, List<MultiSuggester> suggesters) {
+      super(segments);
+      // the suggesters registered when the merge was found see all of its sources
+      this.suggesters = new ArrayList<MultiSuggester>(suggesters);
+    }
+
+    @Override
+    public CodecReader wrapForMerge(CodecReader reader) throws IOException {
+      CodecReader unwrapped = FilterCodecReader.unwrap(reader);
+      synchronized (this) {
+        if (sourcesRead++ == 0) {
+          for (MultiSuggester suggester : suggesters) {
+            suggester.mergeStarted(getMergeInfo(), segments);
+          }
+        }
+        if (unwrapped instanceof SegmentReader) {
+          for (MultiSuggester suggester : suggesters) {
+            suggester.carrySegment(getMergeInfo(), (SegmentReader) unwrapped);
+          }
+        } else {
+          untracked = true;
+        }
+        if (sourcesRead == segments.size() && !untracked) {
+          for (MultiSuggester suggester : suggesters) {
+            suggester.mergeCarried(getMergeInfo());
+          }
+        }
+      }
+      return super.wrapForMerge(reader);
+    }
+
+    @Override
+    public void mergeFinished(boolean success, boolean segmentDropped) throws IOException {
+      super.mergeFinished(success, segmentDropped);
+      if (!success || segmentDropped) {
+        for (MultiSuggester suggester : suggesters) {
+          suggester.mergeAbandoned(getMergeInfo(), success);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,110 @@
+package com.ifactory.press.db.solr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+public class HitCountTest extends SolrTest {
+
+  @Test
+  public void testHitCount() throws SolrServerException, IOException {
+    insertDocument("1", "one apple", "apple banana apple");
+    insertDocument("2", "two", "banana");
+    insertDocument("3", "three", "cherry");
+    insertDocument("4", "four", "banana apple banana banana");
+    solr.commit();
+    // run twice so the second query uses the cached terms
+    for (int i = 0; i < 2; i++) {
+      SolrDocumentList docs = query("text_t:apple OR text_t:banana OR title_t:apple", "hitCount()");
+      assertEquals(3, docs.size());
+      assertEquals("1", docs.get(0).get("uri"));
+      assertEquals(4f, docs.get(0).get("hits"));
+      assertEquals("4", docs.get(1).get("uri"));
+      assertEquals(4f, docs.get(1).get("hits"));
+      assertEquals("2", docs.get(2).get("uri"));
+      assertEquals(1f, docs.get(2).get("hits"));
+    }
+    // only count terms in title_t
+    SolrDocumentList docs = query("text_t:apple OR text_t:banana OR title_t:apple", "hitCount(title_t)");
+    assertEquals("1", docs.get(0).get("uri"));
+    assertEquals(1f, docs.get(0).get("hits"));
+    assertEquals(0f, docs.get(1).get("hits"));
+  }
+
+  @Test
+  public void testNoMatchingTerms() throws SolrServerException, IOException {
+    insertDocument("1", "one", "apple");
+    solr.commit();
+    SolrDocumentList docs = query("text_t:apple OR text_t:durian", "hitCount(title_t)");
+    assertEquals(1, docs.size());
+    assertEquals(0f, docs.get(0).get("hits"));
+  }
+
+  @Test
+  public void testMatchCount() throws SolrServerException, IOException {
+    insertDocument("1", "machine learning", "machine learning for machine translation");
+    insertDocument("2", "apple", "apple apricot banana");
+    solr.commit();
+    // the phrase occurs once in text_t, though machine occurs twice
+    SolrDocumentList docs = query("text_t:\"machine learning\"", "hitCount(text_t)");
+    assertEquals(3f, docs.get(0).get("hits"));
+    docs = query("text_t:\"machine learning\"", "matchCount(text_t)");
+    assertEquals(1f, docs.get(0).get("hits"));
+    docs = query("title_t:\"machine learning\" OR text_t:\"machine learning\"", "matchCount()");
+    assertEquals(2f, docs.get(0).get("hits"));
+    // each expansion of the wildcard is counted
+    docs = query("text_t:ap*", "matchCount()");
+    assertEquals(1, docs.size());
+    assertEquals(2f, docs.get(0).get("hits"));
+    // no positions: the document matches once
+    docs = query("*:*", "matchCount()");
+    assertEquals(1f, docs.get(0).get("hits"));
+  }
+
+  @Test
+  public void testHitCountTransformer() throws SolrServerException, IOException {
+    for (int i = 0; i < 30; i++) {
+      insertDocument(Integer.toString(i), "title " + i, i % 2 == 0 ? "machine learning machine" : "learning");
+      if (i % 10 == 9) {
+        // several segments
+        solr.commit();
+      }
+    }
+    SolrQuery query = new SolrQuery("text_t:\"machine learning\" OR text_t:learning");
+    query.setFields("uri", "hits:[hitcount]", "title:[hitcount f=title_t]", "matches:[hitcount matches=true]");
+    query.set("sort", "uri desc");
+    query.setRows(5);
+    SolrDocumentList docs = solr.query(query).getResults();
+    assertEquals(30, docs.getNumFound());
+    assertEquals(5, docs.size());
+    for (SolrDocument doc : docs) {
+      boolean even = Integer.parseInt((String) doc.get("uri")) % 2 == 0;
+      assertEquals(even ? 3f : 1f, doc.get("hits"));
+      assertEquals(0f, doc.get("title"));
+      assertEquals(even ? 2f : 1f, doc.get("matches"));
+    }
+  }
+
+  private SolrDocumentList query(String q, String hitCount) throws SolrServerException, IOException {
+    SolrQuery query = new SolrQuery(q);
+    query.setFields("uri", "hits:" + hitCount);
+    query.set("sort", hitCount + " desc, uri asc");
+    return solr.query(query).getResults();
+  }
+
+  private void insertDocument(String uri, String title, String text) throws SolrServerException, IOException {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", uri);
+    doc.addField("title_t", title);
+    doc.addField("text_t", text);
+    solr.add(doc);
+  }
+
+}
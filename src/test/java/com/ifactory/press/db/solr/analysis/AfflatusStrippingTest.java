@@ -0,0 +1,39 @@
+package com.ifactory.press.db.solr.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.Test;
+
+public class AfflatusStrippingTest {
+
+  @Test
+  public void testStripAfflatus() throws IOException {
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    tokenizer.setReader(new StringReader("\"Now is -- the time...\" (a.out) — 𐌸c𐌸"));
+    TokenStream stripped = new AfflatusStrippingTokenFilter(tokenizer);
+    CharTermAttribute termAtt = stripped.addAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncAtt = stripped.addAttribute(PositionIncrementAttribute.class);
+    stripped.reset();
+    String[] tokens = { "Now", "is", "the", "time", "a.out", "c" };
+    int[] posIncs = { 1, 1, 2, 1, 1, 2 };
+    for (int i = 0; i < tokens.length; i++) {
+      assertTrue (stripped.incrementToken());
+      assertEquals (tokens[i], termAtt.toString());
+      assertEquals (posIncs[i], posIncAtt.getPositionIncrement());
+    }
+    assertFalse (stripped.incrementToken());
+    stripped.end();
+    stripped.close();
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Safari Books Online
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ifactory.press.db.solr.analysis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.junit.Test;
+
+public class PoolingAnalyzerWrapperTest {
+
+  private static final String FIELD = "text";
+
+  @Test
+  public void testReuseAcrossThreads() throws Exception {
+    final PoolingAnalyzerWrapper analyzer = new PoolingAnalyzerWrapper(new WhitespaceAnalyzer());
+    TokenStream first = consume(analyzer, "one two");
+    TokenStream second = consume(analyzer, "three");
+    // both chains are reserved until released
+    assertTrue (first != second);
+    assertEquals (0, analyzer.getIdleCount(FIELD));
+    analyzer.release();
+    assertEquals (2, analyzer.getIdleCount(FIELD));
+
+    // another thread re-uses the released chains
+    final AtomicReference<TokenStream> reused = new AtomicReference<TokenStream>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          reused.set(consume(analyzer, "four"));
+          analyzer.release();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    t.start();
+    t.join();
+    assertSame (second, reused.get());
+    assertEquals (2, analyzer.getIdleCount(FIELD));
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    PoolingAnalyzerWrapper analyzer = new PoolingAnalyzerWrapper(new WhitespaceAnalyzer(), 2, 60000);
+    for (int i = 0; i < 5; i++) {
+      consume(analyzer, "token " + i);
+    }
+    analyzer.release();
+    assertEquals (2, analyzer.getIdleCount(FIELD));
+  }
+
+  @Test
+  public void testIdleEviction() throws Exception {
+    PoolingAnalyzerWrapper analyzer = new PoolingAnalyzerWrapper(new WhitespaceAnalyzer(), 2, 0);
+    consume(analyzer, "one");
+    consume(analyzer, "two");
+    analyzer.release();
+    assertEquals (2, analyzer.getIdleCount(FIELD));
+    Thread.sleep(1);
+    // one chain is re-used and released again; the other has gone stale
+    consume(analyzer, "three");
+    analyzer.release();
+    assertEquals (1, analyzer.getIdleCount(FIELD));
+    Thread.sleep(1);
+    // a release with nothing reserved still evicts stale chains
+    analyzer.release();
+    assertEquals (0, analyzer.getIdleCount(FIELD));
+  }
+
+  @Test
+  public void testDiscard() throws Exception {
+    PoolingAnalyzerWrapper analyzer = new PoolingAnalyzerWrapper(new WhitespaceAnalyzer());
+    // not consumed or closed: must not be re-used
+    analyzer.tokenStream(FIELD, "one two");
+    analyzer.discard();
+    analyzer.release();
+    assertEquals (0, analyzer.getIdleCount(FIELD));
+    consume(analyzer, "three");
+  }
+
+  private static TokenStream consume(PoolingAnalyzerWrapper analyzer, String text) throws IOException {
+    TokenStream tokens = analyzer.tokenStream(FIELD, text);
+    tokens.reset();
+    while (tokens.incrementToken()) {
+    }
+    tokens.end();
+    tokens.close();
+    return tokens;
+  }
+
+}
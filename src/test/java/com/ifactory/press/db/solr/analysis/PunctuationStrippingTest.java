@@ -3,6 +3,9 @@ package com.ifactory.press.db.solr.analysis;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -25,6 +28,58 @@ public class PunctuationStrippingTest {
     assertTokenStream (stripped, "'Now", "is", "*the*", "time!'");
   }
   
+  @Test
+  public void testSameAsPattern() throws IOException {
+    // the characters the filter used to match with a regular expression
+    Pattern pattern = Pattern.compile("[\\[\\]\"':;,\\.<>;/\\?\\\\\\|{}+=\\-_\\(\\)\\*&^%$#@!~`]+");
+    for (char c = 0; c < 256; c++) {
+      for (String token : new String[] { "" + c, "" + c + c, "." + c, c + "x" }) {
+        TokenStream stripped = new PunctuationStrippingTokenFilter(new MockTokenStream(token));
+        assertEquals(token, !pattern.matcher(token).matches(), stripped.incrementToken());
+      }
+    }
+  }
+
+  @Test
+  public void testConfiguredPunctuation() throws IOException {
+    Map<String, String> args = new HashMap<String, String>();
+    args.put("punctuation", "-*");
+    TokenStream tokens = new MockTokenStream("Now is -- um ! *-* the time".split(" "));
+    TokenStream stripped = new PunctuationStrippingTokenFilterFactory(args).create(tokens);
+    assertTokenStream (stripped, "Now", "is", "um", "!", "the", "time");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNonAsciiPunctuation() {
+    Map<String, String> args = new HashMap<String, String>();
+    args.put("punctuation", "-\u3002");
+    new PunctuationStrippingTokenFilterFactory(args);
+  }
+
+  @Test
+  public void testUnicodePunctuation() throws IOException {
+    // full-width comma, ideographic full stop, corner bracket, copyright, musical G clef (U+1D11E)
+    String text = "Now \uff0c is \u3002\u300c the \u00a9 \ud834\udd1e time \u65e5\u672c \ud835\udc00 ...";
+    Map<String, String> args = new HashMap<String, String>();
+    TokenStream stripped = new PunctuationStrippingTokenFilterFactory(args).create(new MockTokenStream(text.split(" ")));
+    assertTokenStream (stripped, "Now", "\uff0c", "is", "\u3002\u300c", "the", "\u00a9", "\ud834\udd1e", "time",
+        "\u65e5\u672c", "\ud835\udc00");
+    args.put("unicode", "true");
+    stripped = new PunctuationStrippingTokenFilterFactory(args).create(new MockTokenStream(text.split(" ")));
+    // the CJK word and the mathematical bold A (U+1D400) remain
+    assertTokenStream (stripped, "Now", "is", "the", "time", "\u65e5\u672c", "\ud835\udc00");
+    // unpaired surrogates are not punctuation
+    stripped = new PunctuationStrippingTokenFilterFactory(args).create(new MockTokenStream("\ud834", "\udd1e."));
+    assertTokenStream (stripped, "\ud834", "\udd1e.");
+  }
+
+  @Test
+  public void testUnicodePunctuationTable() {
+    for (int c = 0; c <= Character.MAX_CODE_POINT; c++) {
+      assertEquals(Integer.toHexString(c), UnicodePunctuation.isPunctuationType(c), UnicodePunctuation.contains(c));
+    }
+  }
+
   private void assertTokenStream(TokenStream stripped, String ... tokens) throws IOException {
     CharTermAttribute termAtt = stripped.addAttribute(CharTermAttribute.class);
     PositionIncrementAttribute posIncAtt = stripped.addAttribute(PositionIncrementAttribute.class);
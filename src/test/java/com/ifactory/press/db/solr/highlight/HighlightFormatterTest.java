@@ -0,0 +1,48 @@
+package com.ifactory.press.db.solr.highlight;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.lucene.search.uhighlight.Passage;
+import org.junit.Test;
+
+public class HighlightFormatterTest {
+
+  private static final String CONTENT = "one two. three & four. five < six.";
+
+  // as for DefaultPassageFormatter, there's no ellipsis before a passage at the start of the content
+
+  @Test
+  public void testSortByScore() {
+    HighlightFormatter formatter = new HighlightFormatter("<b>", "</b>", "|", false, false);
+    // scores closer than 1/1000 used to be ties
+    Passage[] passages = { passage(0, 8, 0.1f, 0, 3), passage(9, 22, 0.1002f, 9, 14), passage(23, 34, 0.1001f, 23, 27) };
+    assertEquals ("<b>three</b> & four.|<b>five</b> < six.<b>one</b> two.", formatter.format(passages, CONTENT));
+  }
+
+  @Test
+  public void testEqualScoresKeepOffsetOrder() {
+    HighlightFormatter formatter = new HighlightFormatter();
+    Passage[] passages = { passage(0, 8, 1, 0, 3), passage(9, 22, 2, 9, 14), passage(23, 34, 1, 23, 27) };
+    assertEquals ("<b>three</b> & four.<b>one</b> two.... <b>five</b> < six.", formatter.format(passages, CONTENT));
+  }
+
+  @Test
+  public void testMaxPassages() {
+    HighlightFormatter formatter = new HighlightFormatter("<b>", "</b>", "|", true, false, 2);
+    Passage[] passages = { passage(0, 8, 1, 0, 3), passage(9, 22, 3, 9, 14), passage(23, 34, 2, 23, 27) };
+    assertEquals ("<b>three</b> &amp; four.|<b>five</b> &lt; six.", formatter.format(passages, CONTENT));
+    // the formatter's buffer is reused
+    passages = new Passage[] { passage(0, 8, 1, 4, 7) };
+    assertEquals ("one <b>two</b>.", formatter.format(passages, CONTENT));
+  }
+
+  private static Passage passage(int start, int end, float score, int matchStart, int matchEnd) {
+    Passage passage = new Passage();
+    passage.setStartOffset(start);
+    passage.setEndOffset(end);
+    passage.setScore(score);
+    passage.addMatch(matchStart, matchEnd, null, 1);
+    return passage;
+  }
+
+}
@@ -4,17 +4,38 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.uhighlight.Passage;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.HighlightParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.PluginInfo;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.QParser;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -74,6 +95,168 @@ public class SolrUnifiedHighlighterTest extends HeronSolrTest {
     );
   }
 
+  @Test
+  public void testParallelHighlighting() throws Exception {
+    Map<String, Object> extraParams = new HashMap<>();
+    String[] fakeNames = {"Another Person", "Robert Gas", "Jane Doe"};
+    extraParams.put("author", fakeNames);
+    extraParams.put("publisher", fakeNames);
+    extraParams.put("title", "Gas and Electric");
+    indexDocument ("ch5.txt", extraParams);
+    // more documents than a batch
+    for (int i = 1; i <= 3; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "gas" + i);
+      doc.addField("title", "Gas Works " + i);
+      doc.addField("author", fakeNames);
+      solr.add(doc);
+    }
+    solr.commit();
+    SolrQuery query = new SolrQuery("gas");
+    query.setHighlight(true);
+    query.set(SafariSolrHighlighter.THREADS, 1);
+    Map<String, Map<String, List<String>>> sequential = solr.query(query).getHighlighting();
+    int fieldCount = sequential.get("ch5.txt").size();
+    assertTrue (fieldCount > 2);
+    // the fields are split among the highlighter's threads, and reassembled in order
+    query.remove(SafariSolrHighlighter.THREADS);
+    QueryResponse resp = solr.query(query);
+    assertEquals (sequential, resp.getHighlighting());
+    assertEquals (new ArrayList<>(sequential.get("ch5.txt").keySet()),
+        new ArrayList<>(resp.getHighlighting().get("ch5.txt").keySet()));
+    assertNull (resp.getHeader().get("partialResults"));
+    // the documents are highlighted a batch at a time
+    query.set(SafariSolrHighlighter.BATCH_SIZE, 2);
+    assertEquals (sequential, solr.query(query).getHighlighting());
+    query.remove(SafariSolrHighlighter.BATCH_SIZE);
+    // with no time allowed, the fields that weren't ready are left out
+    query.set(SafariSolrHighlighter.TIME_ALLOWED, 0);
+    resp = solr.query(query);
+    Map<String, List<String>> partial = resp.getHighlighting().get("ch5.txt");
+    for (Map.Entry<String, List<String>> field : partial.entrySet()) {
+      assertEquals (sequential.get("ch5.txt").get(field.getKey()), field.getValue());
+    }
+    assertEquals (partial.size() < fieldCount ? Boolean.TRUE : null, resp.getHeader().get("partialResults"));
+  }
+
+  @Test
+  public void testSaturatedPool() throws Exception {
+    indexDocument ("ch5.txt", Collections.<String, Object>singletonMap("title", "Gas and Electric"));
+    // occupy both threads and the queue
+    SafariSolrHighlighter highlighter = createHighlighter(2, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    SolrCore core = getDefaultCore();
+    blockPool(highlighter.getExecutor(core), release, 3);
+    try {
+      // the groups are left out, rather than highlighted on the request's thread
+      SolrQueryResponse rsp = highlightGas(highlighter, core, new ModifiableSolrParams());
+      assertEquals (Boolean.TRUE, rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+    } finally {
+      release.countDown();
+      core.close();
+    }
+  }
+
+  @Test
+  public void testTimeAllowedWhileQueued() throws Exception {
+    indexDocument ("ch5.txt", Collections.<String, Object>singletonMap("title", "Gas and Electric"));
+    // occupy both threads, so the groups wait in the queue
+    SafariSolrHighlighter highlighter = createHighlighter(2, 10);
+    CountDownLatch release = new CountDownLatch(1);
+    SolrCore core = getDefaultCore();
+    blockPool(highlighter.getExecutor(core), release, 2);
+    try {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set(SafariSolrHighlighter.TIME_ALLOWED, 200);
+      long start = System.nanoTime();
+      SolrQueryResponse rsp = highlightGas(highlighter, core, params);
+      long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      // the request waits about as long as it is allowed, and no longer
+      assertTrue ("waited " + elapsedMillis + "ms", elapsedMillis >= 200 && elapsedMillis < 2000);
+      assertEquals (Boolean.TRUE, rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+    } finally {
+      release.countDown();
+      core.close();
+    }
+  }
+
+  private static SafariSolrHighlighter createHighlighter(int threads, int queueSize) {
+    NamedList<Object> args = new NamedList<>();
+    args.add("threads", threads);
+    args.add("queueSize", queueSize);
+    SafariSolrHighlighter highlighter = new SafariSolrHighlighter();
+    highlighter.init(new PluginInfo("highlighting", Collections.<String, String>emptyMap(), args, null));
+    return highlighter;
+  }
+
+  private static void blockPool(ExecutorService executor, final CountDownLatch release, int tasks) {
+    for (int i = 0; i < tasks; i++) {
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws InterruptedException {
+          release.await();
+          return null;
+        }
+      });
+    }
+  }
+
+  /**
+   * highlights the title and text of the one document matching gas, expecting neither field to be
+   * highlighted in time, and returns the response, whose header is marked by the highlighter
+   */
+  private static SolrQueryResponse highlightGas(SafariSolrHighlighter highlighter, SolrCore core, ModifiableSolrParams params) throws Exception {
+    params.set(HighlightParams.HIGHLIGHT, true);
+    params.set(HighlightParams.FIELDS, "title,text");
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    rsp.add("responseHeader", new SimpleOrderedMap<>());
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+    try {
+      Query query = QParser.getParser("title:gas text:gas", req).getQuery();
+      DocList docs = req.getSearcher().getDocList(query, (Query) null, null, 0, 10);
+      assertEquals (1, docs.size());
+      NamedList<Object> highlights = highlighter.doHighlighting(docs, query, req, new String[0]);
+      assertEquals (0, ((NamedList<?>) highlights.get("ch5.txt")).size());
+      return rsp;
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+      req.close();
+    }
+  }
+
+  @Test
+  public void testFormattersSharedByRequest() throws Exception {
+    SolrCore core = getDefaultCore();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(SafariSolrHighlighter.PRESERVED_FIELDS, " author  publisher ");
+    params.set("f.title." + HighlightParams.TAG_PRE, "<i>");
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    try {
+      SafariSolrHighlighter.SafariUnifiedHighlighter highlighter = new SafariSolrHighlighter().new SafariUnifiedHighlighter(req);
+      PassageFormatter author = highlighter.getFormatter("author");
+      assertSame (author, highlighter.getFormatter("author"));
+      assertSame (highlighter.getScorer("author"), highlighter.getScorer("author"));
+      assertNotSame (author, highlighter.getFormatter("title"));
+      // they are kept in the request's context, for the request's other highlighters
+      assertEquals (1, req.getContext().size());
+      // author is preserved whole, title is not
+      assertEquals ("a <em>b</em>cdef", author.format(new Passage[] { passage() }, "a bcdef"));
+      assertEquals ("<i>b</em>c", highlighter.getFormatter("title").format(new Passage[] { passage() }, "a bcdef"));
+    } finally {
+      req.close();
+      core.close();
+    }
+  }
+
+  private static Passage passage() {
+    Passage passage = new Passage();
+    passage.setStartOffset(2);
+    passage.setEndOffset(4);
+    passage.addMatch(2, 3, null, 1);
+    return passage;
+  }
+
   // TODO - randomized testing -- search for phrases and/or words drawn from sentences and
   // expect those same sentences to be returned.
   
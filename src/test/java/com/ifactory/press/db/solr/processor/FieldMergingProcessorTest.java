@@ -18,23 +18,39 @@ package com.ifactory.press.db.solr.processor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexableField;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.TermsResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.TermsParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.junit.Test;
 
 import com.ifactory.press.db.solr.SolrTest;
@@ -46,6 +62,9 @@ public class FieldMergingProcessorTest extends SolrTest {
     private static final String TITLE_FIELD = "title_mt";
     private static final String TEST = "Now is the time for all good people to come to the aid of their intentional community";
     private static final String TITLE = "The Dawning of a New Era";
+    private static final String PARALLEL_CHAIN = "field-merging-parallel-chain";
+    private static final String SHARED_CHAIN = "field-merging-shared-chain";
+    private static final String STORED_TEXT_FIELD = "text_mt_stored";
     
     // insert text_t and title_t and expect to get titles as phrase tokens and text as word tokens
     // in catchall
@@ -58,7 +77,105 @@ public class FieldMergingProcessorTest extends SolrTest {
         doc.addField(TEXT_FIELD, TEST);
         solr.add(doc);
         solr.commit(false, true, true);
-        
+        assertMergedFields();
+    }
+    
+    @Test
+    public void testMergeFieldsConcurrently () throws Exception {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("uri", "/doc/1");
+        doc.addField(TITLE_FIELD, TITLE);
+        doc.addField(TEXT_FIELD, TEST);
+        UpdateRequest req = new UpdateRequest();
+        req.setParam(UpdateParams.UPDATE_CHAIN, PARALLEL_CHAIN);
+        req.add(doc);
+        solr.request(req);
+        solr.commit(false, true, true);
+        assertMergedFields();
+    }
+    
+    @Test
+    public void testMergeFieldsSharingAnalysis () throws Exception {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("uri", "/doc/1");
+        doc.addField(TITLE_FIELD, TITLE);
+        doc.addField(TEXT_FIELD, TEST);
+        doc.addField(STORED_TEXT_FIELD, TITLE);
+        doc.addField(STORED_TEXT_FIELD, "second value");
+        UpdateRequest req = new UpdateRequest();
+        req.setParam(UpdateParams.UPDATE_CHAIN, SHARED_CHAIN);
+        req.add(doc);
+        solr.request(req);
+        solr.commit(false, true, true);
+
+        // the source fields are indexed normally, and keep their stored values
+        assertQueryCount (1, TEXT_FIELD + ":intentional");
+        assertQueryCount (1, STORED_TEXT_FIELD + ":dawning");
+        assertQueryCount (1, STORED_TEXT_FIELD + ":\"second value\"");
+        SolrDocument result = solr.query(new SolrQuery ("uri:\"/doc/1\"")).getResults().get(0);
+        assertEquals (Arrays.asList(TITLE, "second value"), result.getFieldValues(STORED_TEXT_FIELD));
+
+        // and the same tokens are merged into the destination field
+        List<TermsResponse.Term> terms = getTerms(STORED_TEXT_FIELD);
+        HashSet<String> catchallTerms = new HashSet<String>();
+        for (TermsResponse.Term term : getTerms("catchall")) {
+            catchallTerms.add(term.getTerm());
+        }
+        for (TermsResponse.Term term : terms) {
+            assertTrue (term.getTerm(), catchallTerms.contains(term.getTerm()));
+        }
+        assertTrue (catchallTerms.contains(TITLE));
+        assertQueryCount (1, "catchall:intentional");
+    }
+    
+    @Test
+    public void testSharedAnalysisKeepsSourceValues () throws Exception {
+        SolrCore core = getDefaultCore();
+        LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams());
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+        try {
+            final SchemaField sourceField = req.getSchema().getField(STORED_TEXT_FIELD);
+            HashMap<String, Analyzer> analyzers = new HashMap<String, Analyzer>();
+            analyzers.put(STORED_TEXT_FIELD, sourceField.getType().getIndexAnalyzer());
+            HashMap<String, SchemaField> sharedFields = new HashMap<String, SchemaField>();
+            sharedFields.put(STORED_TEXT_FIELD, sourceField);
+            final List<IndexableField> indexed = new ArrayList<IndexableField>();
+            UpdateRequestProcessor last = new UpdateRequestProcessor(null) {
+                @Override
+                public void processAdd(AddUpdateCommand cmd) {
+                    // later processors see the original values; only the schema field picks up the tokens
+                    for (Object value : cmd.getSolrInputDocument().getFieldValues(STORED_TEXT_FIELD)) {
+                        assertTrue (value instanceof String);
+                        indexed.add(sourceField.createField(value));
+                    }
+                }
+            };
+            FieldMergingProcessor processor = new FieldMergingProcessor("catchall", analyzers,
+                    FieldMergingProcessor.createPooledAnalyzers(analyzers), sharedFields, null, last);
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField(STORED_TEXT_FIELD, TITLE);
+            doc.addField(STORED_TEXT_FIELD, "second value");
+            AddUpdateCommand cmd = new AddUpdateCommand(req);
+            cmd.solrDoc = doc;
+            processor.processAdd(cmd);
+            assertEquals (Arrays.asList((Object) TITLE, "second value"), new ArrayList<Object>(doc.getFieldValues(STORED_TEXT_FIELD)));
+            assertEquals (2, doc.getFieldValues("catchall").size());
+            assertEquals (2, indexed.size());
+            for (IndexableField field : indexed) {
+                assertNotNull (((Field) field).tokenStreamValue());
+                assertEquals (STORED_TEXT_FIELD, field.name());
+            }
+            assertEquals (TITLE, indexed.get(0).stringValue());
+            // once the document has been processed, its tokens are no longer shared
+            assertNull (((Field) sourceField.createField(TITLE)).tokenStreamValue());
+        } finally {
+            SolrRequestInfo.clearRequestInfo();
+            req.close();
+            core.close();
+        }
+    }
+    
+    private void assertMergedFields () throws Exception {
         // basic check that the document was inserted
         SolrQuery solrQuery = new SolrQuery ("uri:\"/doc/1\"");
         QueryResponse resp = solr.query(solrQuery);
@@ -139,4 +256,27 @@ public class FieldMergingProcessorTest extends SolrTest {
         solr.commit(true, true);
     }
 
+    @Test
+    public void testInsertMultipleConcurrently() throws Exception {
+        // more field values than the analysis queue holds, so some are analyzed on the caller thread
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+        for (int i = 0; i < 10; i++) {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("uri", "/doc/" + i);
+            for (int j = 0; j <= i; j++) {
+                doc.addField(TITLE_FIELD, TITLE + " " + j);
+                doc.addField(TEXT_FIELD, TEST);
+            }
+            docs.add(doc);
+        }
+        UpdateRequest req = new UpdateRequest();
+        req.setParam(UpdateParams.UPDATE_CHAIN, PARALLEL_CHAIN);
+        req.add(docs);
+        solr.request(req);
+        solr.commit(false, true, true);
+        assertQueryCount (10, "catchall:intentional");
+        assertQueryCount (1, "catchall:\"" + TITLE + " 9\"");
+        assertQueryCount (10, "catchall:\"" + TITLE + " 0\"");
+    }
+
 }
@@ -186,6 +186,51 @@ public class UpdateDocValuesTest extends SolrTest {
 
   }
 
+  @Test
+  /** In block mode, a parent's docvalue is propagated to all of its children in a single update */
+  public void testBlockUpdate() throws Exception {
+    insertTestDocuments(2, 3, false);
+
+    UpdateRequest req = updateDocValues();
+    req.setParam(UpdateDocValuesProcessor.UPDATEDV_BLOCK, "true");
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField(URI, uri(1));
+    doc.addField(WEIGHT_DV, 5);
+    req.add(doc);
+    solr.request(req);
+    solr.commit(false, true, true);
+
+    assertDocValue(uri(1), 5);
+    assertDocValue(uriChild(1, 1), 5);
+    assertDocValue(uriChild(1, 3), 5);
+
+    // explicitly provided children override the propagated value
+    SolrInputDocument child = new SolrInputDocument();
+    child.addField(URI, uriChild(1, 2));
+    child.addField(WEIGHT_DV, 9);
+    doc.addChildDocument(child);
+    doc.setField(WEIGHT_DV, 6);
+    solr.request(req);
+    solr.commit(false, true, true);
+
+    assertDocValue(uri(1), 6);
+    assertDocValue(uriChild(1, 1), 6);
+    assertDocValue(uriChild(1, 2), 9);
+    assertDocValue(uriChild(1, 3), 6);
+    assertDocValue(uriChild(2, 1), null);
+
+    // documents with no children are updated, too
+    insertTestDocuments(1);
+    doc = new SolrInputDocument();
+    doc.addField(URI, uri(1));
+    doc.addField(WEIGHT_DV, 4);
+    req.clear();
+    req.add(doc);
+    solr.request(req);
+    solr.commit(false, true, true);
+    assertDocValue(uri(1), 4);
+  }
+
   private void assertDocValues(int n) throws SolrServerException, IOException {
     SolrQuery query = new SolrQuery ("*:*");
 
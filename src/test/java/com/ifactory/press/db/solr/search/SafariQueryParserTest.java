@@ -1,13 +1,20 @@
 package com.ifactory.press.db.solr.search;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequest;
@@ -36,6 +43,172 @@ public class SafariQueryParserTest extends SolrTest {
     assertParse (BQ(DMQ(PQ(A_T, "one", "two"))), "\"one two\"", "");
   }
   
+  @Test
+  public void testCachedPhraseFields () throws Exception {
+    SafariQueryParserPlugin plugin = new SafariQueryParserPlugin();
+    plugin.init(new NamedList<Object>());
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("qf", A_T);
+    params.add(SafariQueryParser.PQF, B_T2);
+    Map<String, Float> phraseFields = plugin.getPhraseFields(params);
+    assertEquals(Collections.singletonMap(B_T, 2.0f), phraseFields);
+    assertSame(phraseFields, plugin.getPhraseFields(new ModifiableSolrParams(params)));
+    SolrCore core = getDefaultCore();
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    try {
+      for (int i = 0; i < 2; i++) {
+        Query parsed = plugin.createParser("\"one two\"", null, params, req).parse();
+        assertEquals(BQ(DMQ(B(PQ(B_T, "one", "two"), 2.0f))), parsed);
+      }
+    } finally {
+      req.close();
+      core.close();
+    }
+  }
+
+  @Test
+  public void testQueryCache () throws Exception {
+    SafariQueryParserPlugin plugin = new SafariQueryParserPlugin();
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("queryCacheSize", 10);
+    plugin.init(args);
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("qf", A_T);
+    params.add(SafariQueryParser.PQF, B_T2);
+    SolrCore core = getDefaultCore();
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    try {
+      SafariQueryParser parser = plugin.createParser("hey \"one two\"", null, params, req);
+      Query parsed = parser.parse();
+      SafariQueryParser cachedParser = plugin.createParser("hey \"one two\"", null, params, req);
+      assertSame(parsed, cachedParser.parse());
+      assertEquals(parser.getHighlightQuery(), cachedParser.getHighlightQuery());
+      assertEquals(Arrays.asList(parser.getDefaultHighlightFields()), Arrays.asList(cachedParser.getDefaultHighlightFields()));
+      // different phrase fields
+      ModifiableSolrParams params2 = new ModifiableSolrParams(params);
+      params2.set(SafariQueryParser.PQF, B_T);
+      Query parsed2 = plugin.createParser("hey \"one two\"", null, params2, req).parse();
+      assertEquals("+((a_t:hey) (b_t:\"one two\"))", parsed2.toString());
+      // parameter references aren't cached
+      params2.set("bq", "{!term f=a_t v=$x}");
+      params2.set("x", "ho");
+      plugin.createParser("hey", null, params2, req).parse();
+      plugin.createParser("hey", null, params2, req).parse();
+      ParsedQueryCache cache = plugin.getQueryCache();
+      assertEquals(3, cache.getLookups());
+      assertEquals(1, cache.getHits());
+      assertEquals(2, cache.size());
+      // the plugin registered its metrics with the core
+      assertNotNull(core.getSolrMetricsContext().getMetricRegistry().getGauges().get("QUERYPARSER.safari.queryCache.hitratio"));
+    } finally {
+      req.close();
+      core.close();
+    }
+  }
+
+  @Test
+  public void testQueryCacheFieldAliases () throws Exception {
+    SafariQueryParserPlugin plugin = new SafariQueryParserPlugin();
+    NamedList<Object> args = new NamedList<Object>();
+    args.add("queryCacheSize", 10);
+    plugin.init(args);
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("qf", A_T);
+    params.add("f.who.qf", A_T);
+    ModifiableSolrParams params2 = new ModifiableSolrParams(params);
+    params2.set("f.who.qf", B_T);
+    assertNotEquals(ParsedQueryCache.getKey("who:hey", params), ParsedQueryCache.getKey("who:hey", params2));
+    // the order of the aliases doesn't matter
+    params.add("f.what.qf", B_T);
+    ModifiableSolrParams reordered = new ModifiableSolrParams();
+    reordered.add("qf", A_T);
+    reordered.add("f.what.qf", B_T);
+    reordered.add("f.who.qf", A_T);
+    assertEquals(ParsedQueryCache.getKey("who:hey", params), ParsedQueryCache.getKey("who:hey", reordered));
+    SolrCore core = getDefaultCore();
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+    try {
+      assertEquals("+(a_t:hey)", plugin.createParser("who:hey", null, params, req).parse().toString());
+      assertEquals("+(b_t:hey)", plugin.createParser("who:hey", null, params2, req).parse().toString());
+      assertEquals(0, plugin.getQueryCache().getHits());
+    } finally {
+      req.close();
+      core.close();
+    }
+  }
+
+  @Test
+  public void testPrunePhraseFields () throws Exception {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "1");
+    doc.addField(B_T, "one two");
+    doc.addField("c_t", "one three");
+    solr.add(doc);
+    solr.commit();
+    String pqf = B_T2 + " c_t";
+    // without pruning, all the phrase fields are searched
+    assertParse (BQ(DMQ(PQ("c_t", "one", "two"), B(PQ(B_T, "one", "two"), 2.0f))), "\"one two\"", pqf);
+    assertParse (BQ(DMQ(B(PQ(B_T, "one", "two"), 2.0f))), "\"one two\"", pqf, SafariQueryParser.PQF_PRUNE, "true");
+    assertParse (BQ(DMQ(PQ("c_t", "one", "three"))), "\"one three\"", pqf, SafariQueryParser.PQF_PRUNE, "true");
+    assertParse (BQ(DMQ(TQ("c_t", "one"), B(TQ(B_T, "one"), 2.0f))), "\"one\"", pqf, SafariQueryParser.PQF_PRUNE, "true");
+    assertParse (BQ(new MatchNoDocsQuery()), "\"two three\"", pqf, SafariQueryParser.PQF_PRUNE, "true");
+  }
+
+  @Test
+  public void testShinglePhraseFields () throws Exception {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "1");
+    doc.addField(B_T, "the art of war");
+    doc.addField("b_tsh", "the art of war");
+    solr.add(doc);
+    solr.commit();
+    String shingles = SafariQueryParser.PQF_SHINGLES;
+    // a two-word phrase is a single bigram term
+    assertParse (BQ(DMQ(B(TQ("b_tsh", "art of"), 2.0f))), "\"art of\"", B_T2, shingles, "b_t:b_tsh");
+    // longer phrases are phrases of bigrams
+    assertParse (BQ(DMQ(B(PQ("b_tsh", "the art", "art of", "of war"), 2.0f))), "\"the art of war\"", B_T2, shingles, "b_t:b_tsh");
+    // fields without a shingle field, and single terms, are unchanged
+    assertParse (BQ(DMQ(PQ("c_t", "art", "of"), B(TQ("b_tsh", "art of"), 2.0f))), "\"art of\"", B_T2 + " c_t", shingles, "b_t:b_tsh");
+    assertParse (BQ(DMQ(B(TQ(B_T, "art"), 2.0f))), "\"art\"", B_T2, shingles, "b_t:b_tsh");
+    // shingling and pruning combine
+    assertParse (BQ(new MatchNoDocsQuery()), "\"war of\"", B_T2, shingles, "b_t:b_tsh", SafariQueryParser.PQF_PRUNE, "true");
+    // the bigram phrase finds the document
+    Query shingled = new DisjunctionMaxQuery(Arrays.asList(B(PQ("b_tsh", "art of", "of war"), 2.0f)), 0.0f);
+    SolrCore core = getDefaultCore();
+    try {
+      assertEquals (1, (int) core.withSearcher(searcher -> searcher.count(shingled)));
+    } finally {
+      core.close();
+    }
+  }
+
+  @Test
+  public void testShinglePhraseFieldsMultiValued () throws Exception {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "1");
+    doc.addField("b_mt", "the art");
+    doc.addField("b_mt", "of war");
+    doc.addField("b_tsh", "the art");
+    doc.addField("b_tsh", "of war");
+    solr.add(doc);
+    solr.commit();
+    // phrases on a multi-valued phrase field are not shingled
+    String pqf = "b_mt^2";
+    String shingles = "b_mt:b_tsh";
+    assertParse (BQ(DMQ(B(PQ("b_mt", "art", "of"), 2.0f))), "\"art of\"", pqf, SafariQueryParser.PQF_SHINGLES, shingles);
+    assertParse (BQ(DMQ(B(PQ("b_mt", "the", "art", "of"), 2.0f))), "\"the art of\"", pqf, SafariQueryParser.PQF_SHINGLES, shingles);
+    // the phrase field has no position gap between its values, but no bigram spans them
+    Query phrase = PQ("b_mt", "art", "of");
+    Query bigram = TQ("b_tsh", "art of");
+    SolrCore core = getDefaultCore();
+    try {
+      assertEquals (1, (int) core.withSearcher(searcher -> searcher.count(phrase)));
+      assertEquals (0, (int) core.withSearcher(searcher -> searcher.count(bigram)));
+    } finally {
+      core.close();
+    }
+  }
+
   private TermQuery TQ(String f, String v) {
     return new TermQuery(new Term(f, v));
   }
@@ -81,19 +254,23 @@ public class SafariQueryParserTest extends SolrTest {
     return dmq;
   }
   
-  private void assertParse (Query expected, String query, String phraseFields) throws SyntaxError {
+  private void assertParse (Query expected, String query, String phraseFields, String ... extraParams) throws SyntaxError {
     ModifiableSolrParams localParams = new ModifiableSolrParams();
     ModifiableSolrParams params = new ModifiableSolrParams(); 
     params.add("qf", A_T);
     params.add(SafariQueryParser.PQF, phraseFields);
+    for (int i = 0; i < extraParams.length; i += 2) {
+      params.add(extraParams[i], extraParams[i + 1]);
+    }
     SolrCore core = getDefaultCore();
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, localParams);
     try {
-      SolrQueryRequest req = new LocalSolrQueryRequest(core, localParams);
     
       SafariQueryParser parser = new SafariQueryParser(query, localParams, params, req);
       Query parsed = parser.parse();
       assertEquals(expected, parsed);
     } finally {
+      req.close();
       core.close();
     }
   }
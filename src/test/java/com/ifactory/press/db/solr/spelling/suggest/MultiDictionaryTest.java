@@ -1,7 +1,9 @@
 package com.ifactory.press.db.solr.spelling.suggest;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
+import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
 
 public class MultiDictionaryTest {
@@ -23,4 +25,39 @@ public class MultiDictionaryTest {
 
   }
 
+  @Test
+  public void testStripAfflatusBounds() {
+    String[] cases = { "", " ", "''", " word", "word ", "...word---", "...a.out---", "(123)", "𐌸c𐌸" };
+    for (String s : cases) {
+      char[] buf = (s + "###").toCharArray();
+      int start = MultiDictionary.afflatusStart(buf, s.length());
+      int end = MultiDictionary.afflatusEnd(buf, start, s.length());
+      assertEquals(MultiDictionary.stripAfflatus(s), new String(buf, start, end - start));
+      // at an offset
+      buf = ("##" + s + "##").toCharArray();
+      start = MultiDictionary.afflatusStart(buf, 2, s.length());
+      end = MultiDictionary.afflatusEnd(buf, start, s.length() + 2);
+      assertEquals(MultiDictionary.stripAfflatus(s), new String(buf, start, end - start));
+    }
+  }
+
+  @Test
+  public void testStripAfflatusUTF8() {
+    String[] cases = { "", " ", "''", " word", "word ", "...word---", "...a.out---", "(123)", "𐌸c𐌸", "«é»", "—日本—", "𐌸", "x", "é" };
+    for (String s : cases) {
+      BytesRef utf8 = new BytesRef("##" + s + "##");
+      utf8.offset = 2;
+      utf8.length -= 4;
+      int start = MultiDictionary.afflatusStart(utf8);
+      int end = MultiDictionary.afflatusEnd(utf8, start);
+      assertEquals(s, MultiDictionary.stripAfflatus(s), new BytesRef(utf8.bytes, start, end - start).utf8ToString());
+    }
+  }
+
+  @Test
+  public void testStripAfflatusUnchanged() {
+    String s = "word";
+    assertSame(s, MultiDictionary.stripAfflatus(s));
+  }
+
 }
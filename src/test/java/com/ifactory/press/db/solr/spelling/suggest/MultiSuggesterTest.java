@@ -4,21 +4,42 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
 import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.SpellCheckResponse;
 import org.apache.solr.client.solrj.response.SpellCheckResponse.Suggestion;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CoreAdminParams.CoreAdminAction;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.SpellCheckComponent;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.update.CommitTracker;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DirectUpdateHandler2;
+import org.apache.solr.util.RefCounted;
 import org.junit.Test;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+
 import com.ifactory.press.db.solr.SolrTest;
+import com.ifactory.press.db.solr.processor.MultiSuggesterUpdateQueue;
 
 public class MultiSuggesterTest extends SolrTest {
 
@@ -232,6 +253,449 @@ public class MultiSuggesterTest extends SolrTest {
     assertSuggestionCount("a2", 0, "all");
   }
   
+  @Test
+  public void testAsyncUpdates() throws Exception {
+    rebuildSuggester();
+    UpdateRequest req = new UpdateRequest();
+    req.setParam(UpdateParams.UPDATE_CHAIN, "suggester-async-chain");
+    // more documents than the queue holds, so the indexing thread must wait
+    for (int i = 1; i <= 20; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("uri", "/doc/" + i);
+      doc.addField(TITLE_FIELD, String.format("a%d document ", i));
+      req.add(doc);
+    }
+    req.setAction(AbstractUpdateRequest.ACTION.COMMIT, false, true);
+    solr.request(req);
+    // the commit waits for queued suggestions
+    Suggestion suggestion = assertSuggestionCount("a2", 2, "all");
+    assertEquals("<b>a2</b> document", suggestion.getAlternatives().get(0));
+    assertSuggestionCount("a20", 1, "all");
+  }
+  
+  @Test
+  public void testAsyncUpdatesAutocommit() throws Exception {
+    rebuildSuggester();
+    UpdateRequest req = new UpdateRequest();
+    req.setParam(UpdateParams.UPDATE_CHAIN, "suggester-async-chain");
+    for (int i = 1; i <= 20; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("uri", "/doc/" + i);
+      doc.addField(TITLE_FIELD, String.format("a%d document ", i));
+      req.add(doc);
+    }
+    solr.request(req);
+    // commit the way autoCommit does, without passing through the update chain
+    try (SolrCore core = getDefaultCore()) {
+      SolrQueryRequest commitReq = new LocalSolrQueryRequest(core, new ModifiableSolrParams());
+      try {
+        core.getUpdateHandler().commit(new CommitUpdateCommand(commitReq, false));
+      } finally {
+        commitReq.close();
+      }
+    }
+    // the commit listener waits for queued suggestions
+    assertSuggestionCount("a2", 2, "all");
+    assertSuggestionCount("a20", 1, "all");
+  }
+
+  @Test(timeout = 30000)
+  public void testAsyncRunAfterClose() throws Exception {
+    rebuildSuggester();
+    MultiSuggester suggester = getSuggester("suggest-infix-title");
+    MultiSuggesterUpdateQueue queue = new MultiSuggesterUpdateQueue(Collections.singletonList(suggester), 1, 1,
+        MultiSuggesterUpdateQueue.Backpressure.RUN);
+    queue.close();
+    // once the workers have stopped, the indexing thread extracts the suggestions itself
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField(TITLE_VALUE_FIELD, "a21 document");
+    queue.add(doc);
+    queue.flush();
+    try (SolrCore core = getDefaultCore()) {
+      RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+      try {
+        suggester.commit(searcher.get());
+      } finally {
+        searcher.decref();
+      }
+    }
+    assertSuggestionCount("a21", 1, "title");
+  }
+
+  @Test
+  public void testSuggestFromSegments() throws Exception {
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/segments");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    insertTestDocuments(TITLE_FIELD);
+    Suggestion suggestion = assertSuggestionCount("intent", 1, "segments");
+    assertEquals("<b>intent</b>ional", suggestion.getAlternatives().get(0));
+    // "t1" occurs in two of the ten documents
+    assertEquals(2 * 10000000 / 10, getSuggestionWeight("t1", "segments"));
+
+    // merged segments are not counted again
+    solr.optimize(true, true);
+    assertEquals(2 * 10000000 / 10, getSuggestionWeight("t1", "segments"));
+
+    // a new segment updates the weight
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/11");
+    doc.addField(TEXT_FIELD, "t1");
+    solr.add(doc);
+    solr.commit(false, true, true);
+    assertEquals(3 * 10000000 / 11, getSuggestionWeight("t1", "segments"));
+  }
+
+  @Test
+  public void testSuggestFromSegmentsMergedBeforeSearcher() throws Exception {
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/segments");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    insertTestDocuments(TITLE_FIELD);
+    assertSuggestionCount("t1", 1, "segments");
+
+    CommitTracker softCommitTracker;
+    try (SolrCore core = getDefaultCore()) {
+      softCommitTracker = ((DirectUpdateHandler2) core.getUpdateHandler()).getSoftCommitTracker();
+    }
+    long softCommitMaxTime = softCommitTracker.getTimeUpperBound();
+    // keep autoSoftCommit from opening a searcher on the new segments
+    softCommitTracker.setTimeUpperBound(-1);
+    softCommitTracker.cancelPendingCommit();
+    try {
+      // flush two segments no searcher sees, and merge them with the rest
+      for (String text : new String[] { "xunseen", "xhidden" }) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("uri", "/doc/" + text);
+        doc.addField(TEXT_FIELD, text + " t1");
+        UpdateRequest req = new UpdateRequest();
+        req.add(doc);
+        req.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true);
+        req.setParam(UpdateParams.OPEN_SEARCHER, "false");
+        solr.request(req);
+      }
+      UpdateRequest optimize = new UpdateRequest();
+      optimize.setAction(AbstractUpdateRequest.ACTION.OPTIMIZE, true, true, 1);
+      optimize.setParam(UpdateParams.OPEN_SEARCHER, "false");
+      solr.request(optimize);
+      assertSuggestionCount("xunseen", 0, "segments");
+    } finally {
+      softCommitTracker.setTimeUpperBound(softCommitMaxTime);
+    }
+
+    solr.commit(false, true, true);
+    assertSuggestionCount("xunseen", 1, "segments");
+    assertSuggestionCount("xhidden", 1, "segments");
+    // the segments that were already seen are not counted again
+    assertEquals(4 * 10000000 / 12, getSuggestionWeight("t1", "segments"));
+  }
+
+  @Test
+  public void testDeleteHidesUnreferencedSuggestions() throws Exception {
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/refcount");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    insertTestDocuments(TITLE_VALUE_FIELD);
+    assertSuggestionCount("intent", 1, "refcount");
+    assertSuggestionCount("dawn", 2, "refcount");
+    // "t1" occurs in /doc/2 and /doc/3
+    assertSuggestionCount("t1", 1, "refcount");
+
+    // only /doc/1 refers to TITLE and to the words of TEXT
+    solr.deleteById("/doc/1");
+    solr.commit(false, true, true);
+    assertSuggestionCount("intent", 0, "refcount");
+    assertSuggestionCount("dawn", 0, "refcount");
+
+    solr.deleteByQuery("uri:\\/doc\\/2");
+    solr.commit(false, true, true);
+    assertSuggestionCount("t1", 1, "refcount");
+
+    // replacing a document removes its old values
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/3");
+    doc.addField(TITLE_VALUE_FIELD, "a new title");
+    solr.add(doc);
+    solr.commit(false, true, true);
+    assertSuggestionCount("t1", 0, "refcount");
+    assertSuggestionCount("a3", 0, "refcount");
+    assertSuggestionCount("a4", 1, "refcount");
+
+    // a hidden suggestion reappears when it is added again
+    doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/11");
+    doc.addField(TEXT_FIELD, "t1");
+    solr.add(doc);
+    solr.commit(false, true, true);
+    assertSuggestionCount("t1", 1, "refcount");
+  }
+
+  @Test
+  public void testReplaceTwiceBeforeCommit() throws Exception {
+    String[] titles = { "xalpha", "xgamma", "xgamma" };
+    for (int i = 0; i < titles.length; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("uri", "/doc/" + (i + 1));
+      doc.addField(TITLE_VALUE_FIELD, titles[i]);
+      solr.add(doc);
+    }
+    solr.commit(false, true, true);
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/refcount");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    assertSuggestionCount("xalpha", 1, "refcount");
+
+    // each version is removed once: the committed one, then the one that replaced it
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/1");
+    doc.addField(TITLE_VALUE_FIELD, "xbeta");
+    solr.add(doc);
+    doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/1");
+    doc.addField(TITLE_VALUE_FIELD, "xalpha");
+    solr.add(doc);
+    // deleting a deleted document removes nothing more
+    solr.deleteById("/doc/2");
+    solr.deleteById("/doc/2");
+    solr.commit(false, true, true);
+    assertSuggestionCount("xalpha", 1, "refcount");
+    assertSuggestionCount("xbeta", 0, "refcount");
+    assertSuggestionCount("xgamma", 1, "refcount");
+
+    // and after the commit, the new version is read from the searcher
+    solr.deleteById("/doc/1");
+    solr.commit(false, true, true);
+    assertSuggestionCount("xalpha", 0, "refcount");
+  }
+
+  @Test
+  public void testDeleteKeepsSuggestionsWithUncountedTerms() throws Exception {
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/refcount");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    // "alpha." is indexed as is, but suggested as "alpha"; "Omega" is suggested as is, but indexed
+    // as "omega"
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/1");
+    doc.addField("tag_s", "alpha.");
+    doc.addField("text_t", "Omega");
+    solr.add(doc);
+    doc = new SolrInputDocument();
+    doc.addField("uri", "/doc/2");
+    doc.addField("tag_s", "alpha");
+    doc.addField("text_t", "Omega");
+    solr.add(doc);
+    solr.commit(false, true, true);
+    assertSuggestionCount("alph", 1, "refcount");
+    assertSuggestionCount("omeg", 1, "refcount");
+
+    // neither suggestion's docFreq counts /doc/1, which still refers to both
+    solr.deleteById("/doc/2");
+    solr.commit(false, true, true);
+    assertSuggestionCount("alph", 1, "refcount");
+    assertSuggestionCount("omeg", 1, "refcount");
+
+    // the stored values are counted
+    solr.deleteById("/doc/1");
+    solr.commit(false, true, true);
+    assertSuggestionCount("omeg", 0, "refcount");
+  }
+
+  @Test
+  public void testMaintenanceReweightsSuggestions() throws Exception {
+    rebuildSuggester();
+    insertTestDocuments(TITLE_FIELD);
+    // "t1" occurs in two of the ten documents
+    assertEquals(2 * 10000000 / 10, getSuggestionWeight("t1", "all"));
+    for (int i = 11; i <= 20; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("uri", "/doc/" + i);
+      doc.addField(TEXT_FIELD, "x" + i);
+      solr.add(doc);
+    }
+    solr.commit(false, true, true);
+    // incremental updates only re-weight the suggestions they add
+    assertEquals(2 * 10000000 / 10, getSuggestionWeight("t1", "all"));
+
+    MultiSuggester suggester = getSuggester("suggest-infix-all");
+    assertTrue(suggester.maintain() > 0);
+    assertEquals(2 * 10000000 / 20, getSuggestionWeight("t1", "all"));
+    // weights that have not drifted are left alone
+    assertEquals(0, suggester.maintain());
+  }
+
+  @Test
+  public void testMaintenanceKeepsStoredFieldWeights() throws Exception {
+    for (int i = 1; i <= 10; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("uri", "/doc/" + i);
+      doc.addField(TEXT_FIELD, i == 1 ? "zebra stripes" : "stripes " + i);
+      if (i == 1) {
+        doc.addField(TITLE_VALUE_FIELD, "zebra");
+      }
+      solr.add(doc);
+    }
+    solr.commit(false, true, true);
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/refcount");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    // "zebra" is weighted by its title, more heavily than by its one occurrence in the text
+    long zebra = getSuggestionWeight("zebra", "refcount");
+    long stripes = getSuggestionWeight("stripes", "refcount");
+    assertTrue(zebra > stripes);
+    for (int i = 11; i <= 20; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("uri", "/doc/" + i);
+      doc.addField(TEXT_FIELD, "x" + i);
+      solr.add(doc);
+    }
+    solr.commit(false, true, true);
+    assertTrue(getSuggester("suggest-infix-refcount").maintain() > 0);
+    // the text's suggestions drift, but the title's weight is kept
+    assertTrue(getSuggestionWeight("stripes", "refcount") < stripes);
+    assertEquals(zebra, getSuggestionWeight("zebra", "refcount"));
+  }
+
+  @Test
+  public void testCommitDuringConcurrentUpdates() throws Exception {
+    rebuildSuggester();
+    final MultiSuggester suggester = getSuggester("suggest-infix-title");
+    final int numThreads = 4, numDocs = 50;
+    Thread[] threads = new Thread[numThreads];
+    final Exception[] failure = new Exception[1];
+    for (int t = 0; t < numThreads; t++) {
+      final String prefix = "c" + t + "x";
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < numDocs; i++) {
+              SolrInputDocument doc = new SolrInputDocument();
+              doc.addField(TITLE_VALUE_FIELD, prefix + i);
+              suggester.add(doc);
+            }
+          } catch (Exception e) {
+            failure[0] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    try (SolrCore core = getDefaultCore()) {
+      RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+      try {
+        // commit repeatedly while documents are added: none of their suggestions may be lost
+        boolean running = true;
+        while (running) {
+          running = false;
+          for (Thread thread : threads) {
+            running |= thread.isAlive();
+          }
+          suggester.commit(searcher.get());
+        }
+      } finally {
+        searcher.decref();
+      }
+    }
+    assertNull(failure[0]);
+    for (int t = 0; t < numThreads; t++) {
+      assertSuggestionCount("c" + t + "x", numDocs, "title");
+    }
+  }
+
+  @Test
+  public void testCommitDuringMaintenance() throws Exception {
+    SolrQuery q = new SolrQuery("t");
+    q.setRequestHandler("/suggest/refcount");
+    q.set("spellcheck.build", "true");
+    solr.query(q);
+    insertTestDocuments(TITLE_VALUE_FIELD);
+    assertSuggestionCount("intent", 1, "refcount");
+
+    final MultiSuggester suggester = getSuggester("suggest-infix-refcount");
+    final int[] rewritten = { -1 };
+    final Exception[] failure = new Exception[1];
+    Thread maintenance = new Thread() {
+      @Override
+      public void run() {
+        try {
+          rewritten[0] = suggester.maintain();
+        } catch (Exception e) {
+          failure[0] = e;
+        }
+      }
+    };
+    // only /doc/1 refers to the words of TEXT
+    SolrInputDocument removed = new SolrInputDocument();
+    removed.addField(TEXT_FIELD, TEXT);
+    try (SolrCore core = getDefaultCore()) {
+      RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+      try {
+        synchronized (suggester.updateLock) {
+          // hide suggestions while maintenance waits to re-weight its first chunk
+          maintenance.start();
+          while (maintenance.getState() != Thread.State.BLOCKED) {
+            assertTrue(maintenance.isAlive());
+            Thread.sleep(10);
+          }
+          suggester.remove(removed);
+          suggester.commit(searcher.get());
+        }
+      } finally {
+        searcher.decref();
+      }
+    }
+    maintenance.join();
+    assertNull(failure[0]);
+    // maintenance gives way to the commit, and doesn't restore the weights it changed
+    assertEquals(0, rewritten[0]);
+    assertSuggestionCount("intent", 0, "refcount");
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    rebuildSuggester();
+    insertTestDocuments(TITLE_FIELD);
+    assertSuggestionCount("t", 8, "all");
+    try (SolrCore core = getDefaultCore()) {
+      Map<String, Metric> metrics = core.getMetricRegistry().getMetrics();
+      String prefix = "SPELLCHECKER.suggest-infix-all.";
+      assertTrue(((Timer) metrics.get(prefix + "build")).getCount() > 0);
+      assertTrue(((Timer) metrics.get(prefix + "commit")).getCount() > 0);
+      assertTrue(((Timer) metrics.get(prefix + "lookup")).getCount() > 0);
+      assertTrue(((Timer) metrics.get(prefix + "refresh")).getCount() > 0);
+      assertTrue(((Counter) metrics.get(prefix + "updated")).getCount() > 0);
+      // 'the' and 'to' are too frequent
+      assertTrue(((Counter) metrics.get(prefix + "hidden")).getCount() > 0);
+      assertEquals(0, ((Gauge<?>) metrics.get(prefix + "pending." + TEXT_FIELD)).getValue());
+      assertTrue((Integer) ((Gauge<?>) metrics.get(prefix + "segmentCount")).getValue() > 0);
+      assertTrue((Long) ((Gauge<?>) metrics.get(prefix + "sizeInBytes")).getValue() > 0);
+    }
+  }
+
+  private MultiSuggester getSuggester(String name) {
+    try (SolrCore core = getDefaultCore()) {
+      SpellCheckComponent component = (SpellCheckComponent) core.getSearchComponent("suggest-component");
+      return (MultiSuggester) component.getSpellCheckers().get(name);
+    }
+  }
+
+  private int getSuggestionWeight(String prefix, String suggester) throws SolrServerException, IOException {
+    SolrQuery q = new SolrQuery();
+    q.set("spellcheck.q", prefix);
+    q.set("spellcheck.extendedResults", true);
+    q.setRequestHandler("/suggest/" + suggester);
+    Suggestion suggestion = solr.query(q).getSpellCheckResponse().getSuggestion(prefix);
+    assertNotNull("No suggestion found for " + prefix, suggestion);
+    return suggestion.getAlternativeFrequencies().get(0);
+  }
+
   @Test
   public void testEliminateDuplicates() throws Exception {
     rebuildSuggester();